@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares the JMH results with the recorded baseline, exits with status 1 when any benchmark
+ * got slower than the threshold. Both files are written by JMH with the json result format, the
+ * baseline has to be recorded on the machine running the comparison.
+ * <p>
+ * Usage: BaselineComparator baseline.json result.json [threshold percent, default 10]
+ */
+public final class BaselineComparator {
+
+    private static class Score {
+
+        final double score;
+        final double error;
+        final String unit;
+
+        Score(double score, double error, String unit) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+    }
+
+    private BaselineComparator() {
+    }
+
+    /**
+     * Reads the scores by benchmark and parameters, eg. "serialize{cartSize=20, filters=0}".
+     */
+    static Map<String, Score> read(String file) throws IOException {
+        Map<String, Score> scores = new TreeMap<String, Score>();
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            for (JsonElement next : new JsonParser().parse(in).getAsJsonArray()) {
+                JsonObject run = next.getAsJsonObject();
+                String name = run.get("benchmark").getAsString();
+                name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+                Map<String, String> params = new TreeMap<String, String>();
+                if (run.has("params")) {
+                    for (Map.Entry<String, JsonElement> param
+                            : run.getAsJsonObject("params").entrySet()) {
+                        params.put(param.getKey(), param.getValue().getAsString());
+                    }
+                }
+                JsonObject metric = run.getAsJsonObject("primaryMetric");
+                double error = metric.get("scoreError").isJsonPrimitive()
+                        && metric.get("scoreError").getAsJsonPrimitive().isNumber()
+                        ? metric.get("scoreError").getAsDouble() : 0;
+                scores.put(name + params, new Score(metric.get("score").getAsDouble(), error,
+                        metric.get("scoreUnit").getAsString()));
+            }
+        } finally {
+            in.close();
+        }
+        return scores;
+    }
+
+    /**
+     * Prints the comparison and returns the number of regressions. A benchmark regressed when it
+     * got slower than the threshold and the difference is larger than the measurement errors.
+     * The errors are only taken into account while they are within the threshold, a noisy
+     * measurement cannot hide a regression, it is compared by the scores alone.
+     */
+    static int compare(Map<String, Score> baseline, Map<String, Score> result, double threshold) {
+        int regressions = 0;
+        for (Map.Entry<String, Score> next : result.entrySet()) {
+            Score current = next.getValue();
+            Score base = baseline.get(next.getKey());
+            if (base == null) {
+                System.out.println(String.format(Locale.US, "NEW        %s: %.3f %s",
+                        next.getKey(), current.score, current.unit));
+                continue;
+            }
+            if (!base.unit.equals(current.unit)) {
+                throw new IllegalArgumentException("Different units of " + next.getKey() + ": "
+                        + base.unit + " and " + current.unit);
+            }
+            double change = (current.score - base.score) / base.score * 100;
+            // Relative to the baseline score, like the change
+            double error = (current.error + base.error) / base.score * 100;
+            boolean noisy = error > threshold;
+            boolean regressed = change > threshold && (noisy || change > error);
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format(Locale.US,
+                    "%-10s %s: %.3f -> %.3f %s (%+.1f%% +/-%.1f%%)",
+                    regressed ? "REGRESSED" : noisy ? "NOISY" : "OK", next.getKey(), base.score,
+                    current.score, current.unit, change, error));
+        }
+        return regressions;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparator baseline.json result.json [threshold]");
+            System.exit(2);
+        }
+        if (!new File(args[0]).isFile()) {
+            System.err.println("No baseline at " + args[0] + ", record it on this machine with"
+                    + " the jmhRecordBaseline task");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        int regressions = compare(read(args[0]), read(args[1]), threshold);
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmarks regressed more than " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+}
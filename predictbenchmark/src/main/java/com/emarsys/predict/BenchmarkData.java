@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates the inputs of the benchmarks. The same parameters always give the same input, so the
+ * results are comparable with the recorded baselines.
+ */
+final class BenchmarkData {
+
+    static final String MERCHANT_ID = "1A74F439823D2CB4";
+
+    private static boolean initialized;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Initializes the Session with an in-memory storage, once per benchmark process.
+     */
+    static synchronized Session initSession() {
+        if (!initialized) {
+            final Map<String, Object> map = new HashMap<String, Object>();
+            Session.initialize(new Storage() {
+
+                @Override
+                public void put(String key, Object value) {
+                    map.put(key, value);
+                }
+
+                @Override
+                public Object get(String key) {
+                    return map.get(key);
+                }
+
+            });
+            initialized = true;
+        }
+        Session session = Session.getInstance();
+        session.setMerchantId(MERCHANT_ID);
+        session.setCustomerEmail("customer@example.com");
+        return session;
+    }
+
+    static List<CartItem> createCart(int size) {
+        List<CartItem> items = new ArrayList<CartItem>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(new CartItem("item_" + i, 10.5f + i, 1 + i % 3));
+        }
+        return items;
+    }
+
+    static List<RecommendationRequest> createRequests(int count, int filters) {
+        List<RecommendationRequest> requests = new ArrayList<RecommendationRequest>(count);
+        for (int r = 0; r < count; r++) {
+            RecommendationRequest request = new RecommendationRequest("LOGIC_" + r);
+            request.setLimit(10);
+            request.setBaseline(Arrays.asList("item_1", "item_2", "item_3"));
+            for (int f = 0; f < filters; f++) {
+                if (f % 2 == 0) {
+                    request.excludeItemsWhereIn("category", Arrays.asList("Books > \"Sci-fi\"",
+                            "Music & Movies", "Toys"));
+                } else {
+                    request.includeItemsWhereIs("brand", "brand_" + f);
+                }
+            }
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    static Transaction createTransaction(int cartSize, int recommends, int filters) {
+        Transaction transaction = new Transaction();
+        transaction.cart(createCart(cartSize));
+        transaction.view("item_0");
+        transaction.searchTerm("ár & \"idéző\" + 100%");
+        for (RecommendationRequest next : createRequests(recommends, filters)) {
+            transaction.recommend(next);
+        }
+        return transaction;
+    }
+
+    /**
+     * Generates a response with the given number of features, products per feature and schema
+     * fields.
+     */
+    static String createResponse(int features, int productsPerFeature, int schemaWidth)
+            throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("cohort").value("EMARSYS");
+        writer.name("visitor").value("0123456789ABCDEF");
+        writer.name("session").value("FEDCBA9876543210");
+        writer.name("features").beginObject();
+        for (int f = 0; f < features; f++) {
+            writer.name("FEATURE_" + f).beginObject();
+            writer.name("topicLabel").value("Books > Sci-fi");
+            writer.name("items").beginArray();
+            for (int p = 0; p < productsPerFeature; p++) {
+                writer.beginObject();
+                writer.name("id").value("item_" + (f * productsPerFeature + p));
+                writer.name("spans").beginArray().endArray();
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.name("schema").beginArray();
+        for (int i = 0; i < schemaWidth; i++) {
+            writer.value("field_" + i);
+        }
+        writer.endArray();
+        writer.name("products").beginObject();
+        for (int p = 0; p < features * productsPerFeature; p++) {
+            writer.name("item_" + p).beginArray();
+            for (int i = 0; i < schemaWidth; i++) {
+                switch (i % 5) {
+                    case 0:
+                        writer.value("http://www.example.com/products/" + p + "/" + i);
+                        break;
+                    case 1:
+                        writer.value(p * 1.5 + i);
+                        break;
+                    case 2:
+                        writer.value(i % 3 == 0);
+                        break;
+                    case 3:
+                        writer.beginArray().value("tag_" + p).value(i).endArray();
+                        break;
+                    default:
+                        writer.value("Lorem ipsum dolor sit amet " + p);
+                        break;
+                }
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.close();
+        return out.toString();
+    }
+
+    /**
+     * Returns a string of the given length, eg. an email address or a long customer id.
+     */
+    static String createString(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sends many concurrent transactions to the MockRecommender and reports the latency percentiles
+ * and the throughput of the SDK. The latency of a transaction is measured from the call of
+ * sendTransaction until its handler is called. The handlers run one by one on the single
+ * callback thread of the session, so the latency includes the time a finished transaction waits
+ * there behind the others, a high p99 may come from the callback queue and not the network. The
+ * percentiles are only reported over the finished transactions, and it exits with status 1 when
+ * any of them did not finish.
+ * <p>
+ * Usage: LoadTest [name=value]..., see {@link #DEFAULTS} for the options.
+ */
+public final class LoadTest {
+
+    static final Map<String, String> DEFAULTS = new HashMap<String, String>();
+
+    static {
+        // Number of the transactions, all sent at once
+        DEFAULTS.put("transactions", "5000");
+        // Recommends per transaction
+        DEFAULTS.put("recommends", "2");
+        // Products per recommend and fields per product
+        DEFAULTS.put("products", "10");
+        DEFAULTS.put("schemaWidth", "8");
+        // Latency of the server in milliseconds
+        DEFAULTS.put("minLatency", "20");
+        DEFAULTS.put("maxLatency", "50");
+        // Ratio of the requests answered with http 503
+        DEFAULTS.put("errorRate", "0");
+        // Concurrently running transactions of the session
+        DEFAULTS.put("maxConcurrent", String.valueOf(TransactionDispatcher.DEFAULT_MAX_CONCURRENCY));
+        // Prints the phases of the transactions, measured by a MetricsHistogram
+        DEFAULTS.put("metrics", "false");
+    }
+
+    private LoadTest() {
+    }
+
+    /**
+     * Returns the value at the percentile of the sorted values, by the nearest rank.
+     */
+    static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.min(sorted.length, Math.max(rank, 1)) - 1];
+    }
+
+    /**
+     * Returns the latencies of the finished transactions, the others are still zero.
+     */
+    static long[] finishedLatencies(AtomicLongArray latencies) {
+        long[] finished = new long[latencies.length()];
+        int count = 0;
+        for (int i = 0; i < latencies.length(); i++) {
+            long latency = latencies.get(i);
+            if (latency > 0) {
+                finished[count++] = latency;
+            }
+        }
+        return Arrays.copyOf(finished, count);
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+        for (String next : args) {
+            int eq = next.indexOf('=');
+            if (eq == -1 || !DEFAULTS.containsKey(next.substring(0, eq))) {
+                throw new IllegalArgumentException("Unknown option " + next
+                        + ", the options are " + DEFAULTS.keySet());
+            }
+            options.put(next.substring(0, eq), next.substring(eq + 1));
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = parseOptions(args);
+        int transactions = Integer.parseInt(options.get("transactions"));
+        int recommends = Integer.parseInt(options.get("recommends"));
+
+        MockRecommender server = new MockRecommender();
+        server.setLatency(Long.parseLong(options.get("minLatency")),
+                Long.parseLong(options.get("maxLatency")), TimeUnit.MILLISECONDS);
+        server.setPayload(Integer.parseInt(options.get("schemaWidth")), Integer.MAX_VALUE);
+        server.setErrors(Double.parseDouble(options.get("errorRate")), 503);
+        server.start();
+
+        Session session = BenchmarkData.initSession();
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+        session.setMaxConcurrentTransactions(Integer.parseInt(options.get("maxConcurrent")));
+        MetricsHistogram histogram = null;
+        if (Boolean.parseBoolean(options.get("metrics"))) {
+            histogram = new MetricsHistogram();
+            session.setMetricsListener(histogram);
+        }
+
+        // Zero until the transaction finished, written by the handlers on the callback thread
+        final AtomicLongArray latencies = new AtomicLongArray(transactions);
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(transactions);
+        long start = System.nanoTime();
+        for (int i = 0; i < transactions; i++) {
+            Transaction transaction = new Transaction();
+            // A different item each time, so the recommends are not joined
+            transaction.view("item_" + i);
+            for (int r = 0; r < recommends; r++) {
+                RecommendationRequest request = new RecommendationRequest("LOGIC_" + r);
+                request.setLimit(Integer.parseInt(options.get("products")));
+                transaction.recommend(request);
+            }
+            final int index = i;
+            final long sent = System.nanoTime();
+            session.sendTransaction(transaction, new ErrorHandler() {
+                @Override
+                public void onError(@NonNull Error error) {
+                    latencies.set(index, System.nanoTime() - sent);
+                    errors.incrementAndGet();
+                    finished.countDown();
+                }
+            }, new CompletionHandler() {
+                @Override
+                public void onCompletion(@Nullable RecommendationResult result) {
+                    latencies.set(index, System.nanoTime() - sent);
+                    finished.countDown();
+                }
+            });
+        }
+        finished.await(10, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        server.shutdown();
+
+        // The outstanding transactions have no latency, they would pull the percentiles down
+        long[] completed = finishedLatencies(latencies);
+        int outstanding = transactions - completed.length;
+        Arrays.sort(completed);
+        System.out.println("Options: " + options);
+        System.out.println(String.format(Locale.US,
+                "Transactions: %d, failed: %d, server requests: %d, injected errors: %d",
+                transactions, errors.get(), server.getRequestCount(), server.getErrorCount()));
+        System.out.println(String.format(Locale.US, "Throughput: %.1f transactions/s",
+                completed.length * 1e9 / elapsed));
+        if (completed.length > 0) {
+            System.out.println(String.format(Locale.US,
+                    "Latency p50: %.1f ms, p99: %.1f ms, max: %.1f ms",
+                    percentile(completed, 50) / 1e6, percentile(completed, 99) / 1e6,
+                    completed[completed.length - 1] / 1e6));
+        }
+        if (histogram != null) {
+            System.out.println(histogram.snapshot());
+        }
+        if (outstanding > 0) {
+            System.out.println(outstanding + " transactions did not finish");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import com.google.gson.stream.JsonWriter;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+/**
+ * Local stand-in of the recommender. It reads the transactions like the real server, from the
+ * query or from the POST body, sets the cdv cookie and answers the requested features with
+ * generated products. The latency, the size of the payload and the errors can be configured, also
+ * while it is running.
+ */
+public class MockRecommender {
+
+    // Kept, so the level is not lost when the logger is collected
+    private static final Logger SERVER_LOGGER = Logger.getLogger(MockWebServer.class.getName());
+
+    static {
+        // Do not log every request
+        SERVER_LOGGER.setLevel(Level.WARNING);
+    }
+
+    private final MockWebServer server = new MockWebServer();
+    private final Random random = new Random();
+
+    private volatile long minLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private volatile int schemaWidth = 8;
+    private volatile int maxProducts = Integer.MAX_VALUE;
+    private volatile double errorRate;
+    private volatile int errorStatusCode = 503;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    public MockRecommender() {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                return respond(request);
+            }
+        });
+    }
+
+    /**
+     * Delays every response by a uniformly distributed random time between the limits.
+     *
+     * @param min  the minimum latency
+     * @param max  the maximum latency
+     * @param unit the unit of the latencies
+     */
+    public void setLatency(long min, long max, TimeUnit unit) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("The latency must be between 0 and the maximum");
+        }
+        minLatencyNanos = unit.toNanos(min);
+        maxLatencyNanos = unit.toNanos(max);
+    }
+
+    /**
+     * Sets the size of the generated payload.
+     *
+     * @param schemaWidth the number of fields of a product
+     * @param maxProducts the upper limit of the products per feature, the requested limit applies
+     *                    under it
+     */
+    public void setPayload(int schemaWidth, int maxProducts) {
+        if (schemaWidth <= 0) {
+            throw new IllegalArgumentException("The schemaWidth must be positive");
+        }
+        if (maxProducts < 0) {
+            throw new IllegalArgumentException("The maxProducts cannot be negative");
+        }
+        this.schemaWidth = schemaWidth;
+        this.maxProducts = maxProducts;
+    }
+
+    /**
+     * Answers the given ratio of the requests with an error status.
+     *
+     * @param errorRate       ratio of the failed requests between 0 and 1
+     * @param errorStatusCode the http status code of the failures
+     */
+    public void setErrors(double errorRate, int errorStatusCode) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("The errorRate must be between 0 and 1");
+        }
+        this.errorRate = errorRate;
+        this.errorStatusCode = errorStatusCode;
+    }
+
+    public void start() throws IOException {
+        server.start();
+    }
+
+    public void shutdown() throws IOException {
+        server.shutdown();
+    }
+
+    public String getHostName() {
+        return server.getHostName();
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * Returns the number of the received requests, including the failed ones.
+     *
+     * @return request count
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the number of the injected errors.
+     *
+     * @return error count
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    MockResponse respond(RecordedRequest request) throws InterruptedException {
+        requestCount.incrementAndGet();
+        long latency = minLatencyNanos + (long) (nextDouble() * (maxLatencyNanos - minLatencyNanos));
+        if (latency > 0) {
+            TimeUnit.NANOSECONDS.sleep(latency);
+        }
+        if (errorRate > 0 && nextDouble() < errorRate) {
+            errorCount.incrementAndGet();
+            return new MockResponse().setResponseCode(errorStatusCode);
+        }
+        try {
+            HttpUrl query = HttpUrl.parse("http://localhost/?" + readQuery(request));
+            return new MockResponse()
+                    .addHeader("Set-Cookie", "cdv=ABCDEF0123456789")
+                    .addHeader("Content-Type", "application/json")
+                    .setBody(createResponse(query.queryParameter("f")));
+        } catch (IOException e) {
+            return new MockResponse().setResponseCode(400).setBody(String.valueOf(e));
+        }
+    }
+
+    /**
+     * Returns the encoded parameters of the transaction, the long ones are sent as POST.
+     */
+    static String readQuery(RecordedRequest request) throws IOException {
+        if ("POST".equals(request.getMethod())) {
+            Buffer body = request.getBody();
+            if ("gzip".equals(request.getHeader("Content-Encoding"))) {
+                return Okio.buffer(new GzipSource(body)).readUtf8();
+            }
+            return body.readUtf8();
+        }
+        String path = request.getPath();
+        int query = path.indexOf('?');
+        return query == -1 ? "" : path.substring(query + 1);
+    }
+
+    private static int readLimit(String feature) {
+        int start = feature.indexOf(",l:");
+        if (start == -1) {
+            return 0;
+        }
+        start += ",l:".length();
+        int end = feature.indexOf(',', start);
+        return Integer.parseInt(feature.substring(start, end == -1 ? feature.length() : end));
+    }
+
+    /**
+     * Generates the results of the requested features, eg. "f:LOGIC,l:10,o:0|f:OTHER,l:5,o:0".
+     */
+    String createResponse(String f) throws IOException {
+        int width = schemaWidth;
+        int limit = maxProducts;
+        String[] features = f == null || f.isEmpty() ? new String[0] : f.split("\\|");
+        String[] logics = new String[features.length];
+        int[] counts = new int[features.length];
+        for (int i = 0; i < features.length; i++) {
+            logics[i] = features[i].substring("f:".length(), features[i].indexOf(','));
+            counts[i] = Math.min(readLimit(features[i]), limit);
+        }
+
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("cohort").value("EMARSYS");
+        writer.name("visitor").value("0123456789ABCDEF");
+        writer.name("session").value("FEDCBA9876543210");
+        writer.name("features").beginObject();
+        for (int i = 0; i < logics.length; i++) {
+            writer.name(logics[i]).beginObject();
+            writer.name("topicLabel").value("Books > Sci-fi");
+            writer.name("items").beginArray();
+            for (int p = 0; p < counts[i]; p++) {
+                writer.beginObject();
+                writer.name("id").value(logics[i] + "_" + p);
+                writer.name("spans").beginArray().endArray();
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.name("schema").beginArray();
+        for (int c = 0; c < width; c++) {
+            writer.value(c == 0 ? "item" : "field_" + c);
+        }
+        writer.endArray();
+        writer.name("products").beginObject();
+        for (int i = 0; i < logics.length; i++) {
+            for (int p = 0; p < counts[i]; p++) {
+                String id = logics[i] + "_" + p;
+                writer.name(id).beginArray().value(id);
+                for (int c = 1; c < width; c++) {
+                    if (c % 2 == 0) {
+                        writer.value(p * 1.5 + c);
+                    } else {
+                        writer.value("Lorem ipsum dolor sit amet " + p);
+                    }
+                }
+                writer.endArray();
+            }
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.close();
+        return out.toString();
+    }
+
+}
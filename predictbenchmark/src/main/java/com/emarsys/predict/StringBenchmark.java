@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The string building helpers called for every transaction: the email hash and the cart.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class StringBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Hash {
+
+        @Param({"20", "200"})
+        public int length;
+
+        String value;
+
+        @Setup
+        public void setUp() {
+            value = BenchmarkData.createString(length);
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class Cart {
+
+        @Param({"1", "20", "120"})
+        public int cartSize;
+
+        CartCommand command;
+
+        @Setup
+        public void setUp() {
+            command = new CartCommand(BenchmarkData.createCart(cartSize));
+        }
+
+    }
+
+    @Benchmark
+    public String sha1(Hash hash) {
+        return StringUtil.sha1(hash.value);
+    }
+
+    @Benchmark
+    public String cartToString(Cart cart) {
+        return cart.command.toString();
+    }
+
+}
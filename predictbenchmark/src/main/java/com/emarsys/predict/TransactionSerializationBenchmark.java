@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a transaction into the query, with and without the base url.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class TransactionSerializationBenchmark {
+
+    @Param({"1", "20", "120"})
+    public int cartSize;
+
+    @Param({"1", "5"})
+    public int recommends;
+
+    @Param({"0", "10"})
+    public int filters;
+
+    private Session session;
+    private Transaction transaction;
+
+    @Setup
+    public void setUp() {
+        session = BenchmarkData.initSession();
+        transaction = BenchmarkData.createTransaction(cartSize, recommends, filters);
+    }
+
+    @Benchmark
+    public String serialize() {
+        QueryWriter writer = QueryWriter.obtain();
+        transaction.serialize(writer, session.getContext(), session.getAdvertisingId(),
+                Collections.<RecommendCommand>emptySet());
+        return writer.toString();
+    }
+
+    @Benchmark
+    public String generateGET() {
+        return session.generateGET(transaction);
+    }
+
+}
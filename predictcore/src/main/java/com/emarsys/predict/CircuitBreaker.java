@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending the transactions while the recommender fails. The outcome of the last calls is
+ * kept in a sliding window, a call fails if it throws a network error, returns a 429 or 5xx http
+ * status or takes longer than the slow call threshold.
+ * <p>
+ * The breaker opens when the failure rate of a full window reaches the threshold. While it is
+ * open, the transactions fail fast with {@link Error#ERROR_CIRCUIT_OPEN}. After the open duration
+ * it lets one trial call through in half-open state, and closes if the trial succeeds or opens
+ * again if it fails.
+ */
+public class CircuitBreaker {
+
+    private static final String TAG = CircuitBreaker.class.getSimpleName();
+
+    /**
+     * The states of the breaker.
+     */
+    public enum State {
+        /**
+         * The calls are sent.
+         */
+        CLOSED,
+        /**
+         * The calls fail fast.
+         */
+        OPEN,
+        /**
+         * A trial call is sent, the others fail fast.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Receives the state changes of the breaker.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked on the network executor when the state of the breaker changes.
+         *
+         * @param from the previous state
+         * @param to   the new state
+         */
+        void onStateChange(@NonNull State from, @NonNull State to);
+
+    }
+
+    private final boolean[] window;
+    private final float failureRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+
+    private int calls;
+    private int next;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAtNanos;
+    private boolean trialInFlight;
+
+    private volatile Listener listener;
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param windowSize           the number of the last calls considered
+     * @param failureRateThreshold the rate of the failed calls which opens the breaker, in (0, 1]
+     * @param slowCallDuration     the duration over which a call fails
+     * @param openDuration         the time the breaker stays open before a trial call
+     * @param unit                 the time unit of the durations
+     */
+    public CircuitBreaker(int windowSize, float failureRateThreshold, long slowCallDuration,
+                          long openDuration, @NonNull TimeUnit unit) {
+        if (unit == null) {
+            throw new NullPointerException("The unit cannot be null");
+        }
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("The windowSize must be positive");
+        }
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw new IllegalArgumentException("The failureRateThreshold must be in (0, 1]");
+        }
+        if (slowCallDuration <= 0 || openDuration <= 0) {
+            throw new IllegalArgumentException("The durations must be positive");
+        }
+        this.window = new boolean[windowSize];
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = unit.toNanos(slowCallDuration);
+        this.openNanos = unit.toNanos(openDuration);
+    }
+
+    /**
+     * Sets the listener of the state changes.
+     *
+     * @param listener the listener or null
+     */
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the current state.
+     *
+     * @return state
+     */
+    @NonNull
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the rate of the failed calls in the window.
+     *
+     * @return failure rate in [0, 1]
+     */
+    public synchronized float getFailureRate() {
+        return calls == 0 ? 0 : (float) failures / calls;
+    }
+
+    /**
+     * Returns true if the call may be sent. Every permitted call must be recorded with
+     * {@link #onResult(boolean, long)}.
+     */
+    boolean tryAcquire() {
+        State from;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.HALF_OPEN) {
+                if (trialInFlight) {
+                    return false;
+                }
+                // The previous trial was ignored
+                trialInFlight = true;
+                return true;
+            }
+            if (System.nanoTime() - openedAtNanos < openNanos) {
+                return false;
+            }
+            // Open long enough, probe with a trial call
+            from = state;
+            state = State.HALF_OPEN;
+            trialInFlight = true;
+        }
+        notifyListener(from, State.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * Records the outcome of a permitted call.
+     *
+     * @param failed        true if the call failed
+     * @param durationNanos the duration of the call
+     */
+    void onResult(boolean failed, long durationNanos) {
+        failed |= durationNanos >= slowCallNanos;
+        State from;
+        State to;
+        synchronized (this) {
+            from = state;
+            if (state == State.HALF_OPEN && trialInFlight) {
+                trialInFlight = false;
+                if (failed) {
+                    open();
+                } else {
+                    reset();
+                    state = State.CLOSED;
+                }
+            } else if (state == State.CLOSED) {
+                record(failed);
+                if (calls == window.length
+                        && (float) failures / calls >= failureRateThreshold) {
+                    open();
+                }
+            }
+            to = state;
+        }
+        if (from != to) {
+            notifyListener(from, to);
+        }
+    }
+
+    /**
+     * Releases a permitted call without recording its outcome, eg. cancelled by the caller.
+     */
+    synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+        }
+    }
+
+    private void record(boolean failed) {
+        if (calls == window.length) {
+            // Drop the oldest outcome
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[next] = failed;
+        if (failed) {
+            failures++;
+        }
+        next = (next + 1) % window.length;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAtNanos = System.nanoTime();
+        reset();
+    }
+
+    private void reset() {
+        calls = 0;
+        next = 0;
+        failures = 0;
+    }
+
+    private void notifyListener(State from, State to) {
+        Log.d(TAG, "State changed from " + from + " to " + to);
+        Listener current = listener;
+        if (current != null) {
+            current.onStateChange(from, to);
+        }
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{state=" + state + ", calls=" + calls + ", failures=" + failures
+                + "}";
+    }
+
+}
@@ -16,10 +16,6 @@
 
 package com.emarsys.predict;
 
-import android.util.Log;
-import com.squareup.okhttp.HttpUrl;
-
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -28,8 +24,7 @@ import java.util.List;
  */
 abstract class Command {
 
-    List<ErrorParameter> validate() {
-        return new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
     }
 
     ErrorParameter createEmptyStringErrorParameter(String command, String field) {
@@ -39,7 +34,7 @@ abstract class Command {
         return new ErrorParameter("INVALID_ARG", command, msg);
     }
 
-    abstract void buildQuery(HttpUrl.Builder urlBuilder);
+    abstract void buildQuery(QueryWriter writer);
 
 }
 
@@ -78,18 +73,16 @@ class ExcludeCommand extends Filter {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         for (String next : values) {
             if (next.isEmpty()) {
-                ret.add(createEmptyStringErrorParameter("exclude", catalogField));
+                errors.add(createEmptyStringErrorParameter("exclude", catalogField));
             }
         }
-        return ret;
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
+    void buildQuery(QueryWriter writer) {
 
     }
 
@@ -109,18 +102,16 @@ class IncludeCommand extends Filter {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         for (String next : values) {
             if (next.isEmpty()) {
-                ret.add(createEmptyStringErrorParameter("include", catalogField));
+                errors.add(createEmptyStringErrorParameter("include", catalogField));
             }
         }
-        return ret;
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
+    void buildQuery(QueryWriter writer) {
 
     }
 
@@ -138,35 +129,38 @@ class CartCommand extends Command {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         for (CartItem next : items) {
             if (next.getItemId().isEmpty()) {
-                ret.add(createEmptyStringErrorParameter("cart", "itemId"));
+                errors.add(createEmptyStringErrorParameter("cart", "itemId"));
             }
         }
-        return ret;
     }
 
-    @Override
-    public String toString() {
-        List<String> l = new ArrayList<String>();
+    void appendItems(StringBuilder sb) {
+        boolean first = true;
         for (CartItem next : items) {
-            String s = "";
-            s += "i:";
-            s += next.getItemId();
-            s += ",p:";
-            s += next.getPrice();
-            s += ",q:";
-            s += next.getQuantity();
-            l.add(s);
+            if (!first) {
+                sb.append('|');
+            }
+            first = false;
+            sb.append("i:").append(next.getItemId())
+                    .append(",p:").append(next.getPrice())
+                    .append(",q:").append(next.getQuantity());
         }
-        return StringUtil.toStringWithDelimiter(l, "|");
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
-        urlBuilder.addQueryParameter("ca", toString());
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendItems(sb);
+        return sb.toString();
+    }
+
+    @Override
+    void buildQuery(QueryWriter writer) {
+        appendItems(writer.beginValue("ca"));
+        writer.endValue();
     }
 
 }
@@ -188,7 +182,7 @@ class StringCommand extends Command {
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
+    void buildQuery(QueryWriter writer) {
 
     }
 
@@ -204,17 +198,15 @@ class AvailabilityZoneCommand extends StringCommand {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         if (value.isEmpty()) {
-            ret.add(createEmptyStringErrorParameter("availabilityZone", "availabilityZone"));
+            errors.add(createEmptyStringErrorParameter("availabilityZone", "availabilityZone"));
         }
-        return ret;
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
-        urlBuilder.addQueryParameter("az", toString());
+    void buildQuery(QueryWriter writer) {
+        writer.add("az", value);
     }
 
 }
@@ -229,17 +221,15 @@ class CategoryCommand extends StringCommand {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         if (value.isEmpty()) {
-            ret.add(createEmptyStringErrorParameter("category", "category"));
+            errors.add(createEmptyStringErrorParameter("category", "category"));
         }
-        return ret;
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
-        urlBuilder.addQueryParameter("vc", toString());
+    void buildQuery(QueryWriter writer) {
+        writer.add("vc", value);
     }
 
 }
@@ -254,17 +244,15 @@ class KeywordCommand extends StringCommand {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         if (value.isEmpty()) {
-            ret.add(createEmptyStringErrorParameter("keyword", "keyword"));
+            errors.add(createEmptyStringErrorParameter("keyword", "keyword"));
         }
-        return ret;
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
-        urlBuilder.addQueryParameter("k", toString());
+    void buildQuery(QueryWriter writer) {
+        writer.add("k", value);
     }
 
 }
@@ -279,17 +267,15 @@ class TagCommand extends StringCommand {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         if (value.isEmpty()) {
-            ret.add(createEmptyStringErrorParameter("tag", "tag"));
+            errors.add(createEmptyStringErrorParameter("tag", "tag"));
         }
-        return ret;
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
-        urlBuilder.addQueryParameter("t", toString());
+    void buildQuery(QueryWriter writer) {
+        writer.add("t", value);
     }
 
 }
@@ -311,17 +297,16 @@ class PurchaseCommand extends CartCommand {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         if (orderId.isEmpty()) {
-            ret.add(createEmptyStringErrorParameter("purchase", "orderId"));
+            errors.add(createEmptyStringErrorParameter("purchase", "orderId"));
         }
-        return ret;
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
-        urlBuilder.addQueryParameter("co", toString()).addQueryParameter("oi", getOrderId());
+    void buildQuery(QueryWriter writer) {
+        appendItems(writer.beginValue("co"));
+        writer.endValue().add("oi", orderId);
     }
 
 }
@@ -336,17 +321,15 @@ class SearchTermCommand extends StringCommand {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         if (value.isEmpty()) {
-            ret.add(createEmptyStringErrorParameter("searchTerm", "searchTerm"));
+            errors.add(createEmptyStringErrorParameter("searchTerm", "searchTerm"));
         }
-        return ret;
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
-        urlBuilder.addQueryParameter("q", toString());
+    void buildQuery(QueryWriter writer) {
+        writer.add("q", value);
     }
 
 }
@@ -365,31 +348,31 @@ class ViewCommand extends Command {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         if (itemId.isEmpty()) {
-            ret.add(createEmptyStringErrorParameter("view", "itemId"));
+            errors.add(createEmptyStringErrorParameter("view", "itemId"));
         }
-        return ret;
     }
 
-    @Override
-    public String toString() {
-        String ret = "";
-        ret += "i:";
-        ret += itemId;
+    private void appendTo(StringBuilder sb) {
+        sb.append("i:").append(itemId);
         if (trackedItem != null) {
-            ret += ",t:";
-            ret += trackedItem.getResult().getFeatureId();
-            ret += ",c:";
-            ret += trackedItem.getResult().getCohort();
+            sb.append(",t:").append(trackedItem.getResult().getFeatureId())
+                    .append(",c:").append(trackedItem.getResult().getCohort());
         }
-        return ret;
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
-        urlBuilder.addQueryParameter("v", toString());
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    @Override
+    void buildQuery(QueryWriter writer) {
+        appendTo(writer.beginValue("v"));
+        writer.endValue();
     }
 
 }
@@ -410,45 +393,44 @@ class RecommendCommand extends Command {
     }
 
     @Override
-    List<ErrorParameter> validate() {
-        List<ErrorParameter> ret = new ArrayList<ErrorParameter>();
+    void validate(List<ErrorParameter> errors) {
         // Validate logic
         if (recommendationRequest.getLogic().isEmpty()) {
-            ret.add(createEmptyStringErrorParameter("recommend", "logic"));
+            errors.add(createEmptyStringErrorParameter("recommend", "logic"));
         }
         // Validate all baselines
         if (recommendationRequest.getBaseline() != null) {
             for (String next : recommendationRequest.getBaseline()) {
                 if (next.isEmpty()) {
-                    ret.add(createEmptyStringErrorParameter("recommend", "baseline"));
+                    errors.add(createEmptyStringErrorParameter("recommend", "baseline"));
                 }
             }
         }
         // Validate all filters
         for (Filter next : recommendationRequest.getFilters()) {
             if (next.catalogField.isEmpty()) {
-                ret.add(createEmptyStringErrorParameter(
+                errors.add(createEmptyStringErrorParameter(
                         (next instanceof IncludeCommand) ? "include" : "exclude", "catalogField")
                 );
             }
         }
-        return ret;
+    }
+
+    void appendTo(StringBuilder sb) {
+        sb.append("f:").append(recommendationRequest.getLogic())
+                .append(",l:").append(recommendationRequest.getLimit())
+                .append(",o:").append(0);
     }
 
     @Override
     public String toString() {
-        String ret = "";
-        ret += "f:";
-        ret += recommendationRequest.getLogic();
-        ret += ",l:";
-        ret += recommendationRequest.getLimit();
-        ret += ",o:";
-        ret += 0;
-        return ret;
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
     }
 
     @Override
-    void buildQuery(HttpUrl.Builder urlBuilder) {
+    void buildQuery(QueryWriter writer) {
 
     }
 
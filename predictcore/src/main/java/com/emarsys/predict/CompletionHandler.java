@@ -24,7 +24,8 @@ import android.support.annotation.Nullable;
 public interface CompletionHandler {
 
     /**
-     * Invoked on the UI thread after the background processing finishes.
+     * Invoked on the callback executor of the Session (the UI thread by default) after the
+     * background processing finishes.
      * The result of the background processing is passed as a parameter if the handler passed a
      * transaction.
      *
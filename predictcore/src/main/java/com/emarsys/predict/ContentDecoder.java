@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses the responses of a content encoding, eg. to plug in a brotli library. The
+ * encodings of the registered decoders are advertised in the Accept-Encoding header of the
+ * requests, gzip is supported by default.
+ */
+public interface ContentDecoder {
+
+    /**
+     * Returns the name of the content encoding, eg. "br".
+     *
+     * @return the encoding
+     */
+    @NonNull
+    String getEncoding();
+
+    /**
+     * Wraps the compressed response body into a stream of the decompressed bytes.
+     *
+     * @param in         the compressed bytes
+     * @param bufferSize the suggested size of the internal buffer
+     * @return the decompressed bytes
+     * @throws IOException when the body cannot be decompressed
+     */
+    @NonNull
+    InputStream decode(@NonNull InputStream in, int bufferSize) throws IOException;
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from the underlying stream, and optionally the time spent waiting for
+ * them.
+ */
+class CountingInputStream extends FilterInputStream {
+
+    private final boolean timed;
+    private long count;
+    private long readNanos;
+
+    CountingInputStream(InputStream in) {
+        this(in, false);
+    }
+
+    CountingInputStream(InputStream in, boolean timed) {
+        super(in);
+        this.timed = timed;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the time spent in the reads, if the stream is timed.
+     */
+    long getReadNanos() {
+        return readNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = timed ? System.nanoTime() : 0;
+        int b = super.read();
+        if (timed) {
+            readNanos += System.nanoTime() - start;
+        }
+        if (b != -1) {
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long start = timed ? System.nanoTime() : 0;
+        int n = super.read(buffer, offset, length);
+        if (timed) {
+            readNanos += System.nanoTime() - start;
+        }
+        if (n > 0) {
+            count += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+}
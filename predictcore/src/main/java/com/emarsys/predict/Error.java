@@ -27,6 +27,26 @@ public class Error extends RuntimeException {
      * An unknown error has occurred.
      */
     public static final int ERROR_UNKNOWN = -1;
+    /**
+     * The network executor rejected the transaction, it was not sent.
+     */
+    public static final int ERROR_REJECTED = -990;
+    /**
+     * The transaction was cancelled by the sender of an identical recommend it waited for.
+     */
+    public static final int ERROR_CANCELLED = -991;
+    /**
+     * The transaction did not complete within its deadline.
+     */
+    public static final int ERROR_TIMEOUT = -992;
+    /**
+     * The circuit breaker is open, the transaction was not sent.
+     */
+    public static final int ERROR_CIRCUIT_OPEN = -993;
+    /**
+     * HTTP response is compressed with an encoding without a registered ContentDecoder.
+     */
+    public static final int ERROR_UNSUPPORTED_CONTENT_ENCODING = -994;
     /**
      * CDV cookie was not present in the HTTP response.
      */
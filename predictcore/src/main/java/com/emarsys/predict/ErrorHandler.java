@@ -25,7 +25,8 @@ import android.support.annotation.NonNull;
 public interface ErrorHandler {
 
     /**
-     * Invoked on the UI thread when the background processing failed.
+     * Invoked on the callback executor of the Session (the UI thread by default) when the
+     * background processing failed.
      * The error is passed as a parameter.
      *
      * @param error error that occurred
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The built-in decoder of the gzip content encoding.
+ */
+class GzipDecoder implements ContentDecoder {
+
+    @NonNull
+    @Override
+    public String getEncoding() {
+        return "gzip";
+    }
+
+    @NonNull
+    @Override
+    public InputStream decode(@NonNull InputStream in, int bufferSize) throws IOException {
+        return new GZIPInputStream(in, bufferSize);
+    }
+
+}
@@ -17,29 +17,22 @@
 package com.emarsys.predict;
 
 /**
- * Handles the Advertising ID.
+ * Handles the Advertising ID of a session.
  */
 class IdentifierManager {
 
-    private static class Holder {
-        private static final IdentifierManager INSTANCE = new IdentifierManager();
-    }
-
-
-    private IdentifierManager() {
-
-    }
+    private final Storage storage;
 
-    static IdentifierManager getInstance() {
-        return Holder.INSTANCE;
+    IdentifierManager(Storage storage) {
+        this.storage = storage;
     }
 
     String getAdvertisingIdentifier() {
-        return (String) Session.getInstance().getStorage().get("advertisingId");
+        return (String) storage.get("advertisingId");
     }
 
     void setAdvertisingIdentifier(String advertisingIdentifier) {
-        Session.getInstance().getStorage().put("advertisingId", advertisingIdentifier);
+        storage.put("advertisingId", advertisingIdentifier);
     }
 
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The recommend commands sent and not yet answered, by their canonical key. An identical
+ * recommend joins the one in flight instead of sending another request.
+ */
+class InFlightRecommends {
+
+    /**
+     * Receives the result of a joined recommend.
+     */
+    interface Waiter {
+
+        /**
+         * Invoked on the network executor when the request in flight finished. The result is
+         * null if the request failed or the server did not return it.
+         */
+        void onFinished(RecommendationResult result, Error error);
+
+    }
+
+    /**
+     * A recommend in flight.
+     */
+    private static class Pending {
+
+        final Object leader;
+        final List<Waiter> waiters = new ArrayList<Waiter>();
+
+        Pending(Object leader) {
+            this.leader = leader;
+        }
+
+    }
+
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+    /**
+     * Joins the waiter to the recommend in flight, or registers a new one sent by the leader if
+     * there is none.
+     *
+     * @param leader the sender of the recommend, or null if the others may not join it
+     * @return true if joined, false if the caller has to send the recommend
+     */
+    synchronized boolean join(String key, Waiter waiter, @Nullable Object leader) {
+        Pending p = pending.get(key);
+        if (p == null) {
+            if (leader != null) {
+                pending.put(key, new Pending(leader));
+            }
+            return false;
+        }
+        p.waiters.add(waiter);
+        return true;
+    }
+
+    /**
+     * Removes the recommend sent by the leader and returns its waiters.
+     */
+    synchronized List<Waiter> complete(String key, Object leader) {
+        Pending p = pending.get(key);
+        if (p == null || p.leader != leader) {
+            // Abandoned, maybe sent again by another leader
+            return Collections.<Waiter>emptyList();
+        }
+        pending.remove(key);
+        return p.waiters;
+    }
+
+    /**
+     * Removes the recommends sent by the leader if nobody joined them.
+     *
+     * @return false if the leader has to finish the recommends for the waiters
+     */
+    synchronized boolean abandon(Collection<String> keys, Object leader) {
+        for (String next : keys) {
+            Pending p = pending.get(next);
+            if (p != null && p.leader == leader && !p.waiters.isEmpty()) {
+                return false;
+            }
+        }
+        for (String next : keys) {
+            Pending p = pending.get(next);
+            if (p != null && p.leader == leader) {
+                pending.remove(next);
+            }
+        }
+        return true;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+}
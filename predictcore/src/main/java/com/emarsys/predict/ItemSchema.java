@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The field names of the recommended items, shared by all items of a response.
+ */
+class ItemSchema implements Serializable {
+
+    private final String[] fields;
+    private final Map<String, Integer> indexes;
+
+    ItemSchema(List<String> fields) {
+        this.fields = fields.toArray(new String[fields.size()]);
+        indexes = new HashMap<String, Integer>(this.fields.length * 2);
+        for (int i = 0; i < this.fields.length; i++) {
+            indexes.put(this.fields[i], i);
+        }
+    }
+
+    int size() {
+        return fields.length;
+    }
+
+    String getField(int index) {
+        return fields[index];
+    }
+
+    /**
+     * Returns the index of the field, or -1 if the schema does not contain the field.
+     */
+    int indexOf(Object field) {
+        Integer index = indexes.get(field);
+        return index != null ? index : -1;
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+/**
+ * Logging of the SDK, the messages are passed to the log of the current Platform.
+ */
+final class Log {
+
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+
+    private Log() {
+    }
+
+    static void d(String tag, String msg) {
+        Platform.get().log(DEBUG, tag, msg);
+    }
+
+    static void i(String tag, String msg) {
+        Platform.get().log(INFO, tag, msg);
+    }
+
+    static void w(String tag, String msg) {
+        Platform.get().log(WARN, tag, msg);
+    }
+
+    static void e(String tag, String msg) {
+        Platform.get().log(ERROR, tag, msg);
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A finished phase of a transaction, passed to the {@link MetricsListener}.
+ */
+public final class MetricsEvent {
+
+    /**
+     * The phases of a transaction, in the order they happen. The network phases are repeated
+     * for every attempt, the DNS, CONNECT and TLS only if a new connection was opened.
+     */
+    public enum Phase {
+        /**
+         * Serializing the transaction into the url, the value is the length of the url.
+         */
+        BUILD_URL,
+        /**
+         * Waiting for the network executor, or for the backoff of a retry.
+         */
+        QUEUE,
+        /**
+         * Resolving the host name.
+         */
+        DNS,
+        /**
+         * Opening the TCP connection.
+         */
+        CONNECT,
+        /**
+         * The TLS handshake.
+         */
+        TLS,
+        /**
+         * Sending the request until the response headers arrive, the value is the http status
+         * code.
+         */
+        TIME_TO_FIRST_BYTE,
+        /**
+         * Waiting for the response body, the value is the number of the received bytes.
+         */
+        DOWNLOAD,
+        /**
+         * Decoding and parsing the response without the waiting for the body, the value is the
+         * number of the results.
+         */
+        PARSE,
+        /**
+         * Waiting for the callback executor, eg. the main thread, to deliver the results.
+         */
+        DISPATCH,
+        /**
+         * Running the completion handlers of the recommends, the value is the number of the
+         * results.
+         */
+        HANDLER,
+        /**
+         * From sending the transaction until its completion or error handler returns, the value
+         * is the error code if it failed, 0 otherwise.
+         */
+        TOTAL
+    }
+
+    private final long transactionId;
+    private final Phase phase;
+    private final int attempt;
+    private final long timestampNanos;
+    private final long durationNanos;
+    private final long value;
+
+    MetricsEvent(long transactionId, Phase phase, int attempt, long timestampNanos,
+                 long durationNanos, long value) {
+        this.transactionId = transactionId;
+        this.phase = phase;
+        this.attempt = attempt;
+        this.timestampNanos = timestampNanos;
+        this.durationNanos = durationNanos;
+        this.value = value;
+    }
+
+    /**
+     * Returns the identifier of the transaction, unique in the process.
+     *
+     * @return transaction id
+     */
+    public long getTransactionId() {
+        return transactionId;
+    }
+
+    /**
+     * Returns the finished phase.
+     *
+     * @return phase
+     */
+    @NonNull
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Returns the number of the http attempt of the network phases, 0 for the other phases.
+     *
+     * @return attempt
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * Returns the end of the phase, in {@link System#nanoTime()}.
+     *
+     * @return timestamp in nanoseconds
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * Returns the duration of the phase.
+     *
+     * @return duration in nanoseconds
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Returns the byte count, result count or status of the phase, see {@link Phase}. 0 if the
+     * phase has no value.
+     *
+     * @return value
+     */
+    public long getValue() {
+        return value;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "MetricsEvent{transaction=" + transactionId + ", phase=" + phase + ", attempt="
+                + attempt + ", duration=" + durationNanos / 1000 + "us, value=" + value + "}";
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives the phases of the transactions, see {@link Session#setMetricsListener}.
+ * <p>
+ * The events are reported on the thread where the phase finished, the network phases on the
+ * network executor, so the implementation has to be thread-safe and fast.
+ */
+public interface MetricsListener {
+
+    /**
+     * Called when a phase of a transaction finished.
+     *
+     * @param event the finished phase
+     */
+    void onEvent(@NonNull MetricsEvent event);
+
+}
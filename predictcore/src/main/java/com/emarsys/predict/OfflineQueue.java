@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durable queue of the transactions which could not be sent.
+ *
+ * The queue is stored in an append-only journal. Every added transaction is written as an
+ * "A id timestamp url" line, every removed one as an "R id" line. The journal is compacted when
+ * the removed lines outnumber the queued transactions.
+ */
+class OfflineQueue {
+
+    private static final String TAG = OfflineQueue.class.getSimpleName();
+
+    static final String JOURNAL_FILE = "transactions.journal";
+
+    private static final int MIN_COMPACTION_LINES = 64;
+
+    /**
+     * A queued transaction.
+     */
+    static class Entry {
+
+        final long id;
+        final long timestamp;
+        final String url;
+
+        Entry(long id, long timestamp, String url) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.url = url;
+        }
+
+    }
+
+    private final File journal;
+    private final int maxEntries;
+    private final long maxAge;
+
+    private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+    private boolean loaded;
+    private long nextId;
+    private int journalLines;
+
+    /**
+     * @param directory  the directory of the journal
+     * @param maxEntries the maximum number of queued transactions, the oldest are dropped
+     * @param maxAge     the maximum age of the queued transactions in milliseconds
+     */
+    OfflineQueue(File directory, int maxEntries, long maxAge) {
+        this.journal = new File(directory, JOURNAL_FILE);
+        this.maxEntries = maxEntries;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Returns true if the request failed before it could reach the server, so it is not tracked
+     * twice when sent again. Eg. after a read timeout the server may have received it.
+     */
+    static boolean isUnsent(IOException e) {
+        return e instanceof ConnectException || e instanceof UnknownHostException
+                || e instanceof NoRouteToHostException;
+    }
+
+    /**
+     * Queues a transaction.
+     *
+     * @param url the serialized transaction
+     */
+    synchronized void add(String url) {
+        load();
+        Entry entry = new Entry(nextId++, System.currentTimeMillis(), url);
+        entries.put(entry.id, entry);
+        append("A " + entry.id + " " + entry.timestamp + " " + entry.url);
+        // Drop the oldest transactions over the limit
+        Iterator<Entry> i = entries.values().iterator();
+        while (entries.size() > maxEntries && i.hasNext()) {
+            Entry next = i.next();
+            Log.w(TAG, "Queue is full, drop transaction " + next.id);
+            i.remove();
+            append("R " + next.id);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the queued transactions in the order of queueing.
+     * Expired transactions are dropped.
+     */
+    synchronized List<Entry> getEntries() {
+        load();
+        long now = System.currentTimeMillis();
+        Iterator<Entry> i = entries.values().iterator();
+        while (i.hasNext()) {
+            Entry next = i.next();
+            if (now - next.timestamp > maxAge) {
+                Log.w(TAG, "Transaction " + next.id + " expired, drop it");
+                i.remove();
+                append("R " + next.id);
+            }
+        }
+        compactIfNeeded();
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Removes a sent or dropped transaction.
+     */
+    synchronized void remove(Entry entry) {
+        load();
+        if (entries.remove(entry.id) != null) {
+            append("R " + entry.id);
+            compactIfNeeded();
+        }
+    }
+
+    synchronized int size() {
+        load();
+        return entries.size();
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!journal.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal),
+                    "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                journalLines++;
+                String[] parts = line.split(" ", 4);
+                try {
+                    long id = Long.parseLong(parts[1]);
+                    nextId = Math.max(nextId, id + 1);
+                    if ("A".equals(parts[0]) && parts.length == 4) {
+                        entries.put(id, new Entry(id, Long.parseLong(parts[2]), parts[3]));
+                    } else if ("R".equals(parts[0])) {
+                        entries.remove(id);
+                    }
+                } catch (RuntimeException e) {
+                    // Torn write of the last line
+                    Log.w(TAG, "Skip invalid journal line: " + line);
+                }
+            }
+            Log.d(TAG, "Loaded " + entries.size() + " queued transactions");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the journal: " + e.getMessage());
+        } finally {
+            close(reader);
+        }
+    }
+
+    private void append(String line) {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journal, true), "UTF-8"));
+            writer.write(line);
+            writer.write('\n');
+            journalLines++;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the journal: " + e.getMessage());
+        } finally {
+            close(writer);
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (journalLines < MIN_COMPACTION_LINES || journalLines < 2 * entries.size()) {
+            return;
+        }
+        // Rewrite the queued transactions only, then replace the journal
+        File tmp = new File(journal.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                    "UTF-8"));
+            for (Entry next : entries.values()) {
+                writer.write("A " + next.id + " " + next.timestamp + " " + next.url + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(journal)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+            journalLines = entries.size();
+            Log.d(TAG, "Compacted the journal to " + journalLines + " lines");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact the journal: " + e.getMessage());
+        } finally {
+            close(writer);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close the journal");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The environment specific parts of the SDK: the log, the user agent and the thread of the
+ * handlers. The Android adapter is used when the predictsdk library is on the classpath,
+ * otherwise the plain JVM one.
+ */
+abstract class Platform {
+
+    private static final String ANDROID_PLATFORM = "com.emarsys.predict.AndroidPlatform";
+
+    private static final Platform PLATFORM = findPlatform();
+
+    static Platform get() {
+        return PLATFORM;
+    }
+
+    private static Platform findPlatform() {
+        try {
+            return (Platform) Class.forName(ANDROID_PLATFORM).getDeclaredConstructor()
+                    .newInstance();
+        } catch (ClassNotFoundException ignored) {
+            // Not on Android
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Unable to create the Android platform", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Unable to create the Android platform", e);
+        } catch (InstantiationException e) {
+            throw new IllegalStateException("Unable to create the Android platform", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to create the Android platform", e);
+        }
+        return new JvmPlatform();
+    }
+
+    /**
+     * Returns the executor of the completion and error handlers, unless the application sets
+     * another one.
+     */
+    abstract Executor defaultCallbackExecutor();
+
+    /**
+     * Returns the User-Agent header sent with the transactions.
+     */
+    abstract String userAgent();
+
+    abstract void log(int priority, String tag, String msg);
+
+    /**
+     * Plain JVM, eg. a backend service. The handlers are called one by one on a single daemon
+     * thread, like on the main thread of Android, and the messages go to java.util.logging.
+     */
+    static class JvmPlatform extends Platform {
+
+        private ExecutorService callbackExecutor;
+
+        @Override
+        synchronized Executor defaultCallbackExecutor() {
+            if (callbackExecutor == null) {
+                callbackExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        Thread thread = new Thread(r, "EmarsysPredictSDK-callback");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return callbackExecutor;
+        }
+
+        @Override
+        String userAgent() {
+            return "EmarsysPredictSDK|osversion:" + System.getProperty("os.version")
+                    + "|platform:java";
+        }
+
+        @Override
+        void log(int priority, String tag, String msg) {
+            Logger.getLogger(tag).log(toLevel(priority), msg);
+        }
+
+        static Level toLevel(int priority) {
+            switch (priority) {
+                case Log.DEBUG:
+                    return Level.FINE;
+                case Log.INFO:
+                    return Level.INFO;
+                case Log.WARN:
+                    return Level.WARNING;
+                default:
+                    return Level.SEVERE;
+            }
+        }
+
+    }
+
+}
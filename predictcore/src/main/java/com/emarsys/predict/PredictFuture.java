@@ -0,0 +1,415 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of an asynchronous operation, completed on the network executor. Callbacks and
+ * transformations run on the given executor, so the work can stay off the main thread.
+ *
+ * @param <T> the type of the result
+ */
+public class PredictFuture<T> implements Future<T> {
+
+    /**
+     * Receives the outcome of the future.
+     *
+     * @param <T> the type of the result
+     */
+    public interface Callback<T> {
+
+        /**
+         * Invoked when the future has completed.
+         *
+         * @param value the result
+         */
+        void onSuccess(@Nullable T value);
+
+        /**
+         * Invoked when the future has failed or been cancelled.
+         *
+         * @param error an {@link Error}, a {@link CancellationException} or the exception of a
+         *              transformation
+         */
+        void onFailure(@NonNull Throwable error);
+
+    }
+
+    /**
+     * Transforms the result of a future.
+     *
+     * @param <T> the type of the input
+     * @param <R> the type of the output
+     */
+    public interface Transformer<T, R> {
+
+        /**
+         * Returns the transformed result, a thrown exception fails the transformed future.
+         *
+         * @param value the result of the future
+         */
+        R apply(@Nullable T value) throws Exception;
+
+    }
+
+    /**
+     * Runs the tasks on the thread which completes the future.
+     */
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private int state = PENDING;
+    private T value;
+    private Throwable failure;
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+    private volatile Runnable cancelAction;
+
+    PredictFuture() {
+    }
+
+    /**
+     * Sets the task invoked when the future is cancelled, eg. cancels the transaction.
+     */
+    void setCancelAction(Runnable cancelAction) {
+        this.cancelAction = cancelAction;
+    }
+
+    boolean complete(@Nullable T value) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            this.value = value;
+            toRun = finish(SUCCEEDED);
+        }
+        run(toRun);
+        return true;
+    }
+
+    boolean fail(@NonNull Throwable failure) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            this.failure = failure;
+            toRun = finish(FAILED);
+        }
+        run(toRun);
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            this.failure = new CancellationException("The future was cancelled");
+            toRun = finish(CANCELLED);
+        }
+        Runnable action = cancelAction;
+        if (action != null) {
+            action.run();
+        }
+        run(toRun);
+        return true;
+    }
+
+    private List<Runnable> finish(int state) {
+        this.state = state;
+        notifyAll();
+        List<Runnable> toRun = listeners;
+        listeners = null;
+        return toRun;
+    }
+
+    private static void run(List<Runnable> listeners) {
+        for (Runnable next : listeners) {
+            next.run();
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (state == PENDING) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized T get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state == PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("The future has not completed within " + timeout
+                        + " " + unit);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if (state == CANCELLED) {
+            throw (CancellationException) failure;
+        }
+        if (state == FAILED) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+    /**
+     * Adds a callback invoked on the executor when the future is done, or right away if it has
+     * already been done.
+     *
+     * @param callback the callback
+     * @param executor the executor of the callback
+     */
+    public void addCallback(@NonNull final Callback<? super T> callback,
+                            @NonNull final Executor executor) {
+        if (callback == null) {
+            throw new NullPointerException("The callback cannot be null");
+        }
+        if (executor == null) {
+            throw new NullPointerException("The executor cannot be null");
+        }
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        T result;
+                        Throwable error;
+                        synchronized (PredictFuture.this) {
+                            result = value;
+                            error = failure;
+                        }
+                        if (error != null) {
+                            callback.onFailure(error);
+                        } else {
+                            callback.onSuccess(result);
+                        }
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if (state == PENDING) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Returns a future completed with the transformed result of this one. The failures are
+     * passed on, cancelling the returned future cancels this one.
+     *
+     * @param transformer the transformation
+     * @param executor    the executor of the transformation
+     * @return the transformed future
+     */
+    @NonNull
+    public <R> PredictFuture<R> map(@NonNull final Transformer<? super T, ? extends R> transformer,
+                                    @NonNull Executor executor) {
+        if (transformer == null) {
+            throw new NullPointerException("The transformer cannot be null");
+        }
+        final PredictFuture<R> mapped = new PredictFuture<R>();
+        mapped.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                cancel(false);
+            }
+        });
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(@Nullable T value) {
+                try {
+                    mapped.complete(transformer.apply(value));
+                } catch (Exception e) {
+                    mapped.fail(e);
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable error) {
+                mapped.fail(error);
+            }
+        }, executor);
+        return mapped;
+    }
+
+    /**
+     * Returns a future completed with the result of the future returned by the transformation,
+     * eg. a transaction sent after this one has completed. The failures are passed on.
+     *
+     * @param transformer the transformation returning the next future
+     * @param executor    the executor of the transformation
+     * @return the chained future
+     */
+    @NonNull
+    public <R> PredictFuture<R> then(
+            @NonNull final Transformer<? super T, ? extends PredictFuture<R>> transformer,
+            @NonNull Executor executor) {
+        if (transformer == null) {
+            throw new NullPointerException("The transformer cannot be null");
+        }
+        final PredictFuture<R> chained = new PredictFuture<R>();
+        chained.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                cancel(false);
+            }
+        });
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(@Nullable T value) {
+                final PredictFuture<R> next;
+                try {
+                    next = transformer.apply(value);
+                } catch (Exception e) {
+                    chained.fail(e);
+                    return;
+                }
+                if (next == null) {
+                    chained.fail(new NullPointerException("The transformer returned null"));
+                    return;
+                }
+                chained.setCancelAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        next.cancel(false);
+                    }
+                });
+                if (chained.isCancelled()) {
+                    next.cancel(false);
+                }
+                next.addCallback(new Callback<R>() {
+                    @Override
+                    public void onSuccess(@Nullable R value) {
+                        chained.complete(value);
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Throwable error) {
+                        chained.fail(error);
+                    }
+                }, DIRECT_EXECUTOR);
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable error) {
+                chained.fail(error);
+            }
+        }, executor);
+        return chained;
+    }
+
+    /**
+     * Returns a future completed with the results of all the futures in their order, or failed
+     * with the first failure.
+     *
+     * @param futures the futures to join
+     * @return the joined future
+     */
+    @NonNull
+    public static <T> PredictFuture<List<T>> allOf(@NonNull final List<PredictFuture<T>> futures) {
+        if (futures == null) {
+            throw new NullPointerException("The futures cannot be null");
+        }
+        final PredictFuture<List<T>> joined = new PredictFuture<List<T>>();
+        if (futures.isEmpty()) {
+            joined.complete(Collections.<T>emptyList());
+            return joined;
+        }
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (PredictFuture<T> next : futures) {
+            next.addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(@Nullable T value) {
+                    if (remaining.decrementAndGet() == 0) {
+                        List<T> results = new ArrayList<T>(futures.size());
+                        for (PredictFuture<T> future : futures) {
+                            results.add(future.getNow());
+                        }
+                        joined.complete(results);
+                    }
+                }
+
+                @Override
+                public void onFailure(@NonNull Throwable error) {
+                    joined.fail(error);
+                }
+            }, DIRECT_EXECUTOR);
+        }
+        return joined;
+    }
+
+    private synchronized T getNow() {
+        return value;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        String[] states = {"PENDING", "SUCCEEDED", "FAILED", "CANCELLED"};
+        return "PredictFuture{state=" + states[state] + "}";
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The values of a product as they were read from the response. The values are decoded only when
+ * they are first read, and the decoded values are kept for the next reads.
+ */
+class ProductRow implements Serializable {
+
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_NUMBER = 2;
+    static final byte TYPE_BOOLEAN = 3;
+    static final byte TYPE_DECODED = 4;
+
+    // Reads the nested values the same way as Gson does
+    private static final TypeAdapter<Object> OBJECT_ADAPTER = new Gson().getAdapter(Object.class);
+
+    private final byte[] types;
+    private final String[] raw;
+    private Object[] decoded;
+
+    ProductRow(byte[] types, String[] raw) {
+        this.types = types;
+        this.raw = raw;
+    }
+
+    /**
+     * Creates a row of raw values and decoded nested values, see {@link #TYPE_DECODED}.
+     */
+    ProductRow(byte[] types, String[] raw, Object[] decoded) {
+        this.types = types;
+        this.raw = raw;
+        this.decoded = decoded;
+    }
+
+    /**
+     * Creates a row of already decoded values.
+     */
+    ProductRow(Object[] values) {
+        types = new byte[values.length];
+        raw = new String[values.length];
+        decoded = values;
+        for (int i = 0; i < values.length; i++) {
+            types[i] = TYPE_DECODED;
+        }
+    }
+
+    /**
+     * Reads the next json array as a row. The numbers and booleans are kept in their json form,
+     * the rarely used nested arrays and objects are decoded right away.
+     *
+     * @param expectedSize the expected number of values, eg. the size of the schema
+     */
+    static ProductRow read(JsonReader reader, int expectedSize) throws IOException {
+        int capacity = Math.max(expectedSize, 1);
+        byte[] types = new byte[capacity];
+        String[] raw = new String[capacity];
+        Object[] decoded = null;
+        int size = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                raw = Arrays.copyOf(raw, size * 2);
+                if (decoded != null) {
+                    decoded = Arrays.copyOf(decoded, size * 2);
+                }
+            }
+            switch (reader.peek()) {
+                case STRING:
+                    types[size] = TYPE_STRING;
+                    raw[size] = reader.nextString();
+                    break;
+                case NUMBER:
+                    types[size] = TYPE_NUMBER;
+                    raw[size] = reader.nextString();
+                    break;
+                case BOOLEAN:
+                    types[size] = TYPE_BOOLEAN;
+                    raw[size] = reader.nextBoolean() ? "true" : "false";
+                    break;
+                case NULL:
+                    types[size] = TYPE_NULL;
+                    reader.nextNull();
+                    break;
+                default:
+                    types[size] = TYPE_DECODED;
+                    if (decoded == null) {
+                        decoded = new Object[types.length];
+                    }
+                    decoded[size] = OBJECT_ADAPTER.read(reader);
+                    break;
+            }
+            size++;
+        }
+        reader.endArray();
+        if (size != types.length) {
+            types = Arrays.copyOf(types, size);
+            raw = Arrays.copyOf(raw, size);
+            if (decoded != null) {
+                decoded = Arrays.copyOf(decoded, size);
+            }
+        }
+        ProductRow row = new ProductRow(types, raw);
+        row.decoded = decoded;
+        return row;
+    }
+
+    int size() {
+        return types.length;
+    }
+
+    /**
+     * Returns the approximate memory footprint of the row in bytes.
+     */
+    int estimateSize() {
+        int size = 48 + types.length * 9;
+        for (int i = 0; i < types.length; i++) {
+            if (raw[i] != null) {
+                size += 40 + raw[i].length() * 2;
+            } else if (types[i] == TYPE_DECODED && decoded[i] != null) {
+                // Nested arrays and objects, estimated by their string form
+                size += 40 + String.valueOf(decoded[i]).length() * 2;
+            }
+        }
+        return size;
+    }
+
+    byte getType(int index) {
+        return types[index];
+    }
+
+    String getRaw(int index) {
+        return raw[index];
+    }
+
+    Object getValue(int index) {
+        if (index >= types.length) {
+            return null;
+        }
+        byte type = types[index];
+        if (type == TYPE_STRING || type == TYPE_NULL) {
+            // Nothing to decode
+            return raw[index];
+        }
+        synchronized (this) {
+            if (decoded == null) {
+                decoded = new Object[types.length];
+            }
+            Object value = decoded[index];
+            if (value == null) {
+                value = decode(type, raw[index]);
+                decoded[index] = value;
+            }
+            return value;
+        }
+    }
+
+    private static Object decode(byte type, String raw) {
+        switch (type) {
+            case TYPE_NUMBER:
+                return Double.valueOf(raw);
+            case TYPE_BOOLEAN:
+                return Boolean.valueOf(raw);
+            default:
+                return null;
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+/**
+ * Appends the percent-encoded query parameters of a transaction into a single buffer. The values
+ * are composed in a reusable scratch buffer, see {@link #beginValue(String)}, so that serializing
+ * a transaction does not create intermediate strings. The encoding is the same as the encoding
+ * of {@link com.squareup.okhttp.HttpUrl.Builder#addQueryParameter(String, String)}.
+ * <p>
+ * The writers are reused by the thread, obtain one with {@link #obtain()} and do not keep it
+ * after the serialization.
+ */
+class QueryWriter {
+
+    private static final String ENCODE_SET = " \"'<>#&=+%";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] JSON_HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<QueryWriter> WRITERS = new ThreadLocal<QueryWriter>() {
+        @Override
+        protected QueryWriter initialValue() {
+            return new QueryWriter();
+        }
+    };
+
+    private final StringBuilder query = new StringBuilder(256);
+    private final StringBuilder value = new StringBuilder(256);
+    private String name;
+
+    /**
+     * Returns the reset writer of the current thread.
+     */
+    static QueryWriter obtain() {
+        QueryWriter writer = WRITERS.get();
+        writer.query.setLength(0);
+        writer.value.setLength(0);
+        writer.name = null;
+        return writer;
+    }
+
+    /**
+     * Appends a parameter.
+     */
+    QueryWriter add(String name, String value) {
+        beginValue(name).append(value);
+        return endValue();
+    }
+
+    /**
+     * Starts a parameter, its value has to be appended to the returned buffer before
+     * {@link #endValue()}.
+     */
+    StringBuilder beginValue(String name) {
+        if (this.name != null) {
+            throw new IllegalStateException("The value of " + this.name + " is not ended");
+        }
+        this.name = name;
+        value.setLength(0);
+        return value;
+    }
+
+    /**
+     * Ends the parameter started by {@link #beginValue(String)}.
+     */
+    QueryWriter endValue() {
+        if (query.length() > 0) {
+            query.append('&');
+        }
+        encode(name, query);
+        query.append('=');
+        encode(value, query);
+        name = null;
+        return this;
+    }
+
+    int length() {
+        return query.length();
+    }
+
+    @Override
+    public String toString() {
+        return query.toString();
+    }
+
+    private static void encode(CharSequence s, StringBuilder out) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x7f && ENCODE_SET.indexOf(c) == -1) {
+                out.append(c);
+            } else if (c < 0x80) {
+                appendByte(out, c);
+            } else if (c < 0x800) {
+                appendByte(out, 0xc0 | (c >> 6));
+                appendByte(out, 0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                appendByte(out, 0xf0 | (codePoint >> 18));
+                appendByte(out, 0x80 | ((codePoint >> 12) & 0x3f));
+                appendByte(out, 0x80 | ((codePoint >> 6) & 0x3f));
+                appendByte(out, 0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired surrogate, replaced by '?' like the UTF-8 encoder does. Not
+                // Character.isSurrogate, which needs API 19
+                appendByte(out, '?');
+            } else {
+                appendByte(out, 0xe0 | (c >> 12));
+                appendByte(out, 0x80 | ((c >> 6) & 0x3f));
+                appendByte(out, 0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Appends a json string literal, escaped like Gson does without html escaping.
+     */
+    static void appendJsonString(StringBuilder out, String s) {
+        out.append('"');
+        appendJsonEscaped(out, s);
+        out.append('"');
+    }
+
+    /**
+     * Appends the values joined by the delimiter as a json string literal. The delimiter is
+     * appended as is, it must not need escaping.
+     */
+    static void appendJsonString(StringBuilder out, Iterable<String> values, char delimiter) {
+        out.append('"');
+        boolean first = true;
+        for (String next : values) {
+            if (!first) {
+                out.append(delimiter);
+            }
+            first = false;
+            appendJsonEscaped(out, next);
+        }
+        out.append('"');
+    }
+
+    private static void appendJsonEscaped(StringBuilder out, String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                case '\u2028':
+                case '\u2029':
+                    appendUnicodeEscape(out, c);
+                    break;
+                default:
+                    if (c < 0x20) {
+                        appendUnicodeEscape(out, c);
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static void appendUnicodeEscape(StringBuilder out, char c) {
+        out.append("\\u");
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            out.append(JSON_HEX_DIGITS[(c >> shift) & 0xf]);
+        }
+    }
+
+    private static void appendByte(StringBuilder out, int b) {
+        out.append('%').append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+    }
+
+}
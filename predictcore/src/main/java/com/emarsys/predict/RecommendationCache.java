@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The in-memory cache of the recommendation results. A result is reused when the same
+ * recommendation is requested again with the same session and tracking context within the time
+ * to live. The least recently used results are evicted over the entry and byte limits.
+ * <p>
+ * The cached results are shared between the completion handlers, they should not be modified.
+ */
+public class RecommendationCache {
+
+    private static final String TAG = RecommendationCache.class.getSimpleName();
+
+    private static class CacheEntry {
+
+        final RecommendationResult result;
+        final long expiresAtNanos;
+        final long size;
+
+        CacheEntry(RecommendationResult result, long expiresAtNanos, long size) {
+            this.result = result;
+            this.expiresAtNanos = expiresAtNanos;
+            this.size = size;
+        }
+
+    }
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final boolean staleWhileRevalidate;
+
+    // In access order, the eldest entry is the least recently used
+    private final LinkedHashMap<String, CacheEntry> entries =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+    private long bytes;
+
+    private long hitCount;
+    private long staleHitCount;
+    private long missCount;
+    private long evictionCount;
+
+    private volatile RecommendationDiskCache diskCache;
+
+    RecommendationCache(long ttlMillis, int maxEntries, long maxBytes,
+                        boolean staleWhileRevalidate) {
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * Creates the cache key of a recommendation request. The context contains everything which
+     * may change the recommendations, eg. the merchant, the customer, the viewed item.
+     */
+    static String createKey(String context, RecommendationRequest request) {
+        StringBuilder key = new StringBuilder(context);
+        key.append("#f:").append(request.getLogic()).append(",l:").append(request.getLimit());
+        if (request.getBaseline() != null) {
+            key.append("#pi:").append(StringUtil.toStringWithDelimiter(request.getBaseline(), "|"));
+        }
+        for (Filter next : request.getFilters()) {
+            key.append("#ex:").append(next instanceof ExcludeCommand ? '-' : '+')
+                    .append(next.catalogField).append(',').append(next.rule).append(',')
+                    .append(StringUtil.toStringWithDelimiter(next.values, "|"));
+        }
+        return key.toString();
+    }
+
+    static long estimateSize(String key, RecommendationResult result) {
+        long size = 64 + key.length() * 2;
+        for (RecommendedItem next : result.getProducts()) {
+            size += 32 + next.getRow().estimateSize();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the result from the memory. It is called on the thread of the sender, usually the
+     * main thread, so the disk is not read, the stored results are loaded by {@link #preload()}.
+     */
+    synchronized RecommendationResult get(String key) {
+        CacheEntry entry = entries.get(key);
+        if (entry != null && entry.expiresAtNanos - System.nanoTime() <= 0) {
+            if (staleWhileRevalidate) {
+                // Expired, the caller has to refresh it
+                staleHitCount++;
+                return entry.result.asStale();
+            }
+            removeEntry(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.result;
+    }
+
+    void put(String key, RecommendationResult result) {
+        synchronized (this) {
+            putInMemory(key, result, System.currentTimeMillis());
+        }
+        RecommendationDiskCache disk = diskCache;
+        if (disk != null) {
+            disk.write(key, result);
+        }
+    }
+
+    private CacheEntry putInMemory(String key, RecommendationResult result, long timestamp) {
+        long size = estimateSize(key, result);
+        if (size > maxBytes) {
+            Log.d(TAG, "Result of " + result.getFeatureId() + " is too large to cache");
+            return null;
+        }
+        CacheEntry old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.size;
+        }
+        // The age of the results read from the disk shortens their time to live
+        long ageNanos = Math.max(0, System.currentTimeMillis() - timestamp) * 1000000L;
+        CacheEntry entry = new CacheEntry(result, System.nanoTime() + ttlNanos - ageNanos, size);
+        entries.put(key, entry);
+        bytes += size;
+        trimToSize();
+        return entry;
+    }
+
+    void setDiskCache(RecommendationDiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * Reads the stored results into the memory, call it on a background thread.
+     */
+    void preload() {
+        RecommendationDiskCache disk = diskCache;
+        if (disk == null) {
+            return;
+        }
+        // From the oldest to the newest, so the newest are the most recently used
+        for (RecommendationDiskCache.Entry next : disk.readAll()) {
+            synchronized (this) {
+                if (!entries.containsKey(next.key)) {
+                    putInMemory(next.key, next.result, next.timestamp);
+                }
+            }
+        }
+    }
+
+    private void removeEntry(String key, CacheEntry entry) {
+        entries.remove(key);
+        bytes -= entry.size;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, CacheEntry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Map.Entry<String, CacheEntry> eldest = it.next();
+            it.remove();
+            bytes -= eldest.getValue().size;
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Removes all cached results, including the ones stored on the disk.
+     */
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            bytes = 0;
+        }
+        RecommendationDiskCache disk = diskCache;
+        if (disk != null) {
+            disk.clear();
+        }
+    }
+
+    /**
+     * Returns the number of cached results, including the expired ones not yet removed.
+     *
+     * @return number of results
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the approximate memory footprint of the cached results in bytes.
+     *
+     * @return size in bytes
+     */
+    public synchronized long byteSize() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of recommendations served from the cache.
+     *
+     * @return hit count
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of expired recommendations served in stale-while-revalidate mode.
+     *
+     * @return stale hit count
+     */
+    public synchronized long getStaleHitCount() {
+        return staleHitCount;
+    }
+
+    /**
+     * Returns the number of recommendations not found in the cache.
+     *
+     * @return miss count
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of results evicted because of the entry or byte limits.
+     *
+     * @return eviction count
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "RecommendationCache{size=" + entries.size() + ", bytes=" + bytes
+                + ", hits=" + hitCount + ", staleHits=" + staleHitCount + ", misses=" + missCount
+                + ", evictions=" + evictionCount + "}";
+    }
+
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent store of the recommendation results, one file per cache key.
+ *
+ * The files are written in a compact binary format: a header (magic, version, key, store time)
+ * followed by the cohort, feature ID and topic of the result, the field names of the schema, and
+ * the rows of the products. Every value of a row is a type byte and, unless it is null, its json
+ * form as a length prefixed UTF-8 string. The files are replaced atomically, a torn or corrupt
+ * file is deleted when read.
+ */
+class RecommendationDiskCache {
+
+    private static final String TAG = RecommendationDiskCache.class.getSimpleName();
+
+    static final int MAGIC = 0x45505243;
+    static final int VERSION = 1;
+
+    private static final String SUFFIX = ".rec";
+    private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * A stored result.
+     */
+    static class Entry {
+
+        final String key;
+        final long timestamp;
+        final RecommendationResult result;
+
+        Entry(String key, long timestamp, RecommendationResult result) {
+            this.key = key;
+            this.timestamp = timestamp;
+            this.result = result;
+        }
+
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final long maxAge;
+
+    /**
+     * @param directory the directory of the result files
+     * @param maxBytes  the maximum total size of the files, the oldest are deleted
+     * @param maxAge    the maximum age of the stored results in milliseconds
+     */
+    RecommendationDiskCache(File directory, long maxBytes, long maxAge) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Returns all the stored results from the oldest to the newest. Expired and unreadable files
+     * are deleted.
+     */
+    synchronized List<Entry> readAll() {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (File next : listFiles()) {
+            Entry entry = readFile(next);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        Log.d(TAG, "Loaded " + entries.size() + " stored results");
+        return entries;
+    }
+
+    synchronized void write(String key, RecommendationResult result) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Unable to create " + directory);
+            return;
+        }
+        File file = fileOf(key);
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, key);
+            out.writeLong(System.currentTimeMillis());
+            writeResult(out, result);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to store result: " + e.getMessage());
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+        trimToSize();
+    }
+
+    synchronized void clear() {
+        for (File next : listFiles()) {
+            next.delete();
+        }
+    }
+
+    private File fileOf(String key) {
+        return new File(directory, StringUtil.sha1(key) + SUFFIX);
+    }
+
+    /**
+     * Returns the result files from the oldest to the newest.
+     */
+    private File[] listFiles() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        return files;
+    }
+
+    private void trimToSize() {
+        File[] files = listFiles();
+        long size = 0;
+        for (File next : files) {
+            size += next.length();
+        }
+        for (int i = 0; i < files.length && size > maxBytes; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private Entry readFile(File file) {
+        DataInputStream in = null;
+        boolean delete = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown format");
+            }
+            String key = readString(in);
+            long timestamp = in.readLong();
+            if (System.currentTimeMillis() - timestamp > maxAge) {
+                Log.d(TAG, "Stored result expired, delete it");
+                delete = true;
+                return null;
+            }
+            return new Entry(key, timestamp, readResult(in));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file.getName() + ", delete it: " + e.getMessage());
+            delete = true;
+            return null;
+        } finally {
+            close(in);
+            if (delete) {
+                file.delete();
+            }
+        }
+    }
+
+    static void writeResult(DataOutputStream out, RecommendationResult result)
+            throws IOException {
+        writeString(out, result.getCohort());
+        writeString(out, result.getFeatureId());
+        writeString(out, result.getTopic());
+        List<RecommendedItem> products = result.getProducts();
+        ItemSchema schema = products.isEmpty() ? null : products.get(0).getSchema();
+        out.writeInt(schema != null ? schema.size() : 0);
+        for (int i = 0; schema != null && i < schema.size(); i++) {
+            writeString(out, schema.getField(i));
+        }
+        out.writeInt(products.size());
+        for (RecommendedItem next : products) {
+            writeRow(out, next.getRow());
+        }
+    }
+
+    static RecommendationResult readResult(DataInputStream in) throws IOException {
+        String cohort = readString(in);
+        String featureId = readString(in);
+        String topic = readString(in);
+        RecommendationResult result = new RecommendationResult(cohort, featureId, topic);
+        int schemaSize = in.readInt();
+        List<String> fields = new ArrayList<String>(schemaSize);
+        for (int i = 0; i < schemaSize; i++) {
+            fields.add(readString(in));
+        }
+        ItemSchema schema = new ItemSchema(fields);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            result.addProduct(new RecommendedItem(result, schema, readRow(in)));
+        }
+        return result;
+    }
+
+    private static void writeRow(DataOutputStream out, ProductRow row) throws IOException {
+        out.writeInt(row.size());
+        for (int i = 0; i < row.size(); i++) {
+            byte type = row.getType(i);
+            out.writeByte(type);
+            if (type == ProductRow.TYPE_DECODED) {
+                writeString(out, GSON.toJson(row.getValue(i)));
+            } else if (type != ProductRow.TYPE_NULL) {
+                writeString(out, row.getRaw(i));
+            }
+        }
+    }
+
+    private static ProductRow readRow(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        byte[] types = new byte[size];
+        String[] raw = new String[size];
+        Object[] decoded = null;
+        for (int i = 0; i < size; i++) {
+            types[i] = in.readByte();
+            if (types[i] == ProductRow.TYPE_DECODED) {
+                if (decoded == null) {
+                    decoded = new Object[size];
+                }
+                decoded[i] = GSON.fromJson(readString(in), Object.class);
+            } else if (types[i] != ProductRow.TYPE_NULL) {
+                raw[i] = readString(in);
+            }
+        }
+        return new ProductRow(types, raw, decoded);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close the result file");
+            }
+        }
+    }
+
+}
@@ -34,6 +34,22 @@ public class RecommendationResult implements Serializable {
         this.featureId = featureId;
         this.topic = topic;
         products = new ArrayList<RecommendedItem>();
+        stale = false;
+    }
+
+    private RecommendationResult(RecommendationResult source, boolean stale) {
+        this.cohort = source.cohort;
+        this.featureId = source.featureId;
+        this.topic = source.topic;
+        this.products = source.products;
+        this.stale = stale;
+    }
+
+    /**
+     * Returns a copy of the result flagged as stale, sharing the products.
+     */
+    RecommendationResult asStale() {
+        return new RecommendationResult(this, true);
     }
 
     void addProduct(RecommendedItem product) {
@@ -94,4 +110,17 @@ public class RecommendationResult implements Serializable {
         return featureId;
     }
 
+    private final boolean stale;
+
+    /**
+     * Returns true if the result was served from the cache after its time to live. In
+     * stale-while-revalidate mode the completion handler is called again with the fresh result
+     * when it arrives from the server.
+     *
+     * @return true if stale, false if fresh
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
 }
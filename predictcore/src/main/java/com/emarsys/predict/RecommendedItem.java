@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The result item.
+ */
+public class RecommendedItem implements Serializable {
+
+    private final RecommendationResult result;
+    private final ItemSchema schema;
+    private final ProductRow row;
+
+    private transient Map<String, Object> data;
+
+    /**
+     * Creates an item. The values of the row are in the order of the schema fields.
+     */
+    RecommendedItem(RecommendationResult result, ItemSchema schema, ProductRow row) {
+        this.result = result;
+        this.schema = schema;
+        this.row = row;
+    }
+
+    /**
+     * Return the recommended item record. Keys are fields copied from the product catalog.
+     * The returned map is a read-only view of the item, the values are decoded when they are
+     * first read.
+     *
+     * @return data
+     */
+    @NonNull
+    public Map<String, Object> getData() {
+        if (data == null) {
+            data = new Data();
+        }
+        return data;
+    }
+
+    RecommendationResult getResult() {
+        return result;
+    }
+
+    ItemSchema getSchema() {
+        return schema;
+    }
+
+    ProductRow getRow() {
+        return row;
+    }
+
+    Object getValue(int index) {
+        return row.getValue(index);
+    }
+
+    @Override
+    public String toString() {
+        List<String> l = new ArrayList<String>();
+        for (Map.Entry<String, Object> next : getData().entrySet()) {
+            l.add(next.getKey() + " = " + next.getValue());
+        }
+        return l.isEmpty() ? super.toString() : StringUtil.toStringWithDelimiter(l, ", ");
+    }
+
+    /**
+     * Map view of the item values keyed by the schema fields.
+     */
+    private class Data extends AbstractMap<String, Object> {
+
+        private Set<Entry<String, Object>> entries;
+
+        @Override
+        public Object get(Object key) {
+            int index = schema.indexOf(key);
+            return index < 0 ? null : getValue(index);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return schema.indexOf(key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return schema.size();
+        }
+
+        @NonNull
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            if (entries == null) {
+                entries = new AbstractSet<Entry<String, Object>>() {
+
+                    @NonNull
+                    @Override
+                    public Iterator<Entry<String, Object>> iterator() {
+                        return new Iterator<Entry<String, Object>>() {
+
+                            private int index;
+
+                            @Override
+                            public boolean hasNext() {
+                                return index < schema.size();
+                            }
+
+                            @Override
+                            public Entry<String, Object> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                String key = schema.getField(index);
+                                Object value = getValue(index);
+                                index++;
+                                return new SimpleImmutableEntry<String, Object>(key, value);
+                            }
+
+                            @Override
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return schema.size();
+                    }
+
+                };
+            }
+            return entries;
+        }
+
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Processes the server json response.
+ * The response is read as a stream, the products are mapped to the results without building an
+ * intermediate json tree. The items keep the product rows in the order of the schema, which is
+ * shared by all items of the response. The row values are decoded on demand.
+ */
+class ResponseParser {
+
+    private static final String TAG = ResponseParser.class.getSimpleName();
+
+    private final String cohort;
+    private final String visitor;
+    private final String session;
+    private final List<RecommendationResult> results;
+
+    /**
+     * Holds a feature until the products are read.
+     */
+    private static class Feature {
+
+        final String featureId;
+        String topicLabel;
+        final List<String> itemIds = new ArrayList<String>();
+
+        Feature(String featureId) {
+            this.featureId = featureId;
+        }
+
+    }
+
+    private static String checkValue(String value, String key) {
+        if (value == null) {
+            throw new Error("Missing '" + key + "' parameter",
+                    Error.ERROR_MISSING_JSON_PARAMETER, null);
+        }
+        Log.d(TAG, "Found " + key + " " + value);
+        return value;
+    }
+
+    ResponseParser(Reader in) throws IOException {
+        Log.d(TAG, "Parse json");
+        String cohort = null;
+        String visitor = null;
+        String session = null;
+        List<Feature> features = null;
+        List<String> schema = Collections.emptyList();
+        Map<String, ProductRow> products = Collections.emptyMap();
+
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("cohort".equals(name)) {
+                cohort = readString(reader);
+            } else if ("visitor".equals(name)) {
+                visitor = readString(reader);
+            } else if ("session".equals(name)) {
+                session = readString(reader);
+            } else if ("features".equals(name)) {
+                features = readFeatures(reader);
+            } else if ("schema".equals(name)) {
+                schema = readSchema(reader);
+            } else if ("products".equals(name)) {
+                products = readProducts(reader, features, schema.size());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // Get cohort
+        this.cohort = checkValue(cohort, "cohort");
+        // Get visitor
+        this.visitor = checkValue(visitor, "visitor");
+        // Get session
+        this.session = checkValue(session, "session");
+        if (features == null) {
+            throw new Error("Missing 'features' parameter",
+                    Error.ERROR_MISSING_JSON_PARAMETER, null);
+        }
+        Log.d(TAG, "Found " + features.size() + " elements in the features");
+        Log.d(TAG, "Found " + schema.size() + " elements in the schema");
+        Log.d(TAG, "Found " + products.size() + " elements in the products");
+        // Shared by all items
+        ItemSchema itemSchema = new ItemSchema(schema);
+        // Create results
+        results = new ArrayList<RecommendationResult>(features.size());
+        // Iterate on the all features
+        for (Feature feature : features) {
+            // Create next result
+            RecommendationResult result = new RecommendationResult(this.cohort,
+                    feature.featureId,
+                    feature.topicLabel
+            );
+            // Iterate on the all indexes
+            for (String itemId : feature.itemIds) {
+                // Get values for the index
+                ProductRow row = products.get(itemId);
+                if (row == null) {
+                    Log.w(TAG, "Missing product " + itemId + ", drop item");
+                    continue;
+                }
+                result.addProduct(new RecommendedItem(result, itemSchema, row));
+            }
+            Log.d(TAG, "Created " + result.getProducts().size() + " results in the feature "
+                    + result.getFeatureId());
+            results.add(result);
+        }
+        Log.d(TAG, "Created " + results.size() + " features");
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.STRING) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    private static List<Feature> readFeatures(JsonReader reader) throws IOException {
+        List<Feature> features = new ArrayList<Feature>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            Feature feature = new Feature(reader.nextName());
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("topicLabel".equals(name)) {
+                    feature.topicLabel = readString(reader);
+                } else if ("items".equals(name)) {
+                    readItemIds(reader, feature.itemIds);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            features.add(feature);
+        }
+        reader.endObject();
+        return features;
+    }
+
+    private static void readItemIds(JsonReader reader, List<String> itemIds) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                JsonToken token = reader.peek();
+                if ("id".equals(name)
+                        && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                    itemIds.add(reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+    }
+
+    private static List<String> readSchema(JsonReader reader) throws IOException {
+        List<String> schema = new ArrayList<String>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            schema.add(readString(reader));
+        }
+        reader.endArray();
+        return schema;
+    }
+
+    private static Map<String, ProductRow> readProducts(JsonReader reader,
+                                                        List<Feature> features,
+                                                        int schemaSize) throws IOException {
+        // When the features are already read, the products without items are skipped
+        Set<String> itemIds = null;
+        if (features != null) {
+            itemIds = new HashSet<String>();
+            for (Feature feature : features) {
+                itemIds.addAll(feature.itemIds);
+            }
+        }
+        Map<String, ProductRow> products = new HashMap<String, ProductRow>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String itemId = reader.nextName();
+            if (itemIds != null && !itemIds.contains(itemId)) {
+                reader.skipValue();
+                continue;
+            }
+            // The items of the same product share the row
+            products.put(itemId, ProductRow.read(reader, schemaSize));
+        }
+        reader.endObject();
+        return products;
+    }
+
+    String getSession() {
+        return session;
+    }
+
+    String getVisitor() {
+        return visitor;
+    }
+
+    List<RecommendationResult> getResults() {
+        return results;
+    }
+
+}
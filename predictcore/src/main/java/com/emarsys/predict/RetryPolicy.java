@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries the transactions failed because of a transient error: a connect or read timeout, a
+ * refused connection, a 408, 429 or 5xx http status. The attempts are delayed by an exponential
+ * backoff with full jitter, or by the Retry-After header of the response.
+ * <p>
+ * The retries are limited by a budget shared by all the transactions, so they cannot amplify an
+ * outage: every retry spends a token, every successful transaction earns a fraction of a token.
+ */
+public class RetryPolicy {
+
+    static final int DEFAULT_MAX_RETRY_TOKENS = 10;
+    static final float DEFAULT_TOKEN_RATIO = 0.1f;
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxRetryTokens;
+    private final float tokenRatio;
+
+    private final Random random = new Random();
+    private float retryTokens;
+
+    /**
+     * Creates a policy with the default retry budget.
+     *
+     * @param maxAttempts    the maximum number of attempts, including the first one
+     * @param initialBackoff the maximum delay of the first retry
+     * @param maxBackoff     the maximum delay of any retry
+     * @param unit           the time unit of the backoffs
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff,
+                       @NonNull TimeUnit unit) {
+        this(maxAttempts, initialBackoff, maxBackoff, unit, DEFAULT_MAX_RETRY_TOKENS,
+                DEFAULT_TOKEN_RATIO);
+    }
+
+    /**
+     * Creates a policy.
+     *
+     * @param maxAttempts    the maximum number of attempts, including the first one
+     * @param initialBackoff the maximum delay of the first retry
+     * @param maxBackoff     the maximum delay of any retry
+     * @param unit           the time unit of the backoffs
+     * @param maxRetryTokens the size of the retry budget, every retry spends one token
+     * @param tokenRatio     the tokens earned by a successful transaction
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff,
+                       @NonNull TimeUnit unit, int maxRetryTokens, float tokenRatio) {
+        if (unit == null) {
+            throw new NullPointerException("The unit cannot be null");
+        }
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("The maxAttempts must be positive");
+        }
+        if (initialBackoff < 0 || maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException(
+                    "The backoffs must be non-negative and initialBackoff <= maxBackoff");
+        }
+        if (maxRetryTokens < 0 || tokenRatio < 0) {
+            throw new IllegalArgumentException("The retry budget cannot be negative");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = unit.toMillis(initialBackoff);
+        this.maxBackoffMillis = unit.toMillis(maxBackoff);
+        this.maxRetryTokens = maxRetryTokens;
+        this.tokenRatio = tokenRatio;
+        this.retryTokens = maxRetryTokens;
+    }
+
+    /**
+     * Returns the maximum number of attempts, including the first one.
+     *
+     * @return maximum number of attempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns the tokens left in the retry budget.
+     *
+     * @return number of retries allowed now
+     */
+    public synchronized float getRetryTokens() {
+        return retryTokens;
+    }
+
+    static boolean isTransient(IOException e) {
+        return e instanceof SocketTimeoutException || e instanceof ConnectException;
+    }
+
+    static boolean isTransient(int statusCode) {
+        return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Returns the delay of the next attempt in milliseconds, or -1 if the failed attempt must not
+     * be retried. Spends a token of the budget if it is retried.
+     *
+     * @param attempt    the number of the failed attempt, starting from 1
+     * @param retryAfter the Retry-After header of the response
+     */
+    long nextDelayMillis(int attempt, @Nullable String retryAfter) {
+        if (attempt >= maxAttempts) {
+            return -1;
+        }
+        long delay = parseRetryAfter(retryAfter, System.currentTimeMillis());
+        if (delay > maxBackoffMillis) {
+            // Longer than the caller is willing to wait
+            return -1;
+        }
+        if (delay < 0) {
+            delay = backoffMillis(attempt);
+        }
+        synchronized (this) {
+            if (retryTokens < 1) {
+                // Out of budget, most likely an outage
+                return -1;
+            }
+            retryTokens--;
+        }
+        return delay;
+    }
+
+    /**
+     * Returns a random delay between zero and the exponential backoff of the attempt.
+     */
+    long backoffMillis(int attempt) {
+        long backoff = initialBackoffMillis << Math.min(attempt - 1, 30);
+        if (backoff > maxBackoffMillis || backoff < 0) {
+            backoff = maxBackoffMillis;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * (backoff + 1));
+        }
+    }
+
+    synchronized void onSuccess() {
+        retryTokens = Math.min(maxRetryTokens, retryTokens + tokenRatio);
+    }
+
+    /**
+     * Parses the delay of the Retry-After header in seconds or as an http date.
+     *
+     * @return the delay in milliseconds, or -1 if missing or invalid
+     */
+    static long parseRetryAfter(@Nullable String value, long now) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds >= 0 ? TimeUnit.SECONDS.toMillis(seconds) : -1;
+        } catch (NumberFormatException e) {
+            // Not in seconds
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value);
+            return Math.max(0, date.getTime() - now);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "RetryPolicy{maxAttempts=" + maxAttempts + ", initialBackoff="
+                + initialBackoffMillis + "ms, maxBackoff=" + maxBackoffMillis
+                + "ms, retryTokens=" + retryTokens + "/" + maxRetryTokens + "}";
+    }
+
+}
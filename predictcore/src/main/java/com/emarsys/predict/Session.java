@@ -0,0 +1,1847 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpCookie;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The session object. {@link #getInstance()} returns the global one, using the storage passed to
+ * {@link #initialize(Storage)}. Independent sessions, eg. one per merchant, can be created with
+ * {@link #Session(Storage)}, each with its own storage, cookies, http client, caches and network
+ * threads. The sessions share the default callback executor only.
+ */
+public class Session {
+
+    private static final String TAG = Session.class.getSimpleName();
+
+    private static class Holder {
+        private static final Session INSTANCE = new Session(defaultStorage);
+    }
+
+    private final Storage storage;
+
+    private final IdentifierManager identifierManager;
+
+    // Not installed as the default CookieHandler, the sessions do not share cookies
+    private final CookieManager cookieManager;
+
+    private final TransactionDispatcher dispatcher;
+
+    static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+
+    // Shared by all transactions, so that connections are kept alive between them
+    private final OkHttpClient client;
+
+    /**
+     * Creates a session independent from the global one and from the other sessions.
+     *
+     * @param storage the Storage for accessing and modifying save and retrieve persistent
+     *                key-value pairs of this session
+     */
+    public Session(@NonNull Storage storage) {
+        if (storage == null) {
+            throw new NullPointerException("The storage cannot be null");
+        }
+        this.storage = storage;
+        identifierManager = new IdentifierManager(storage);
+        cookieManager = new CookieManager();
+        cookieManager.setCookiePolicy(CookiePolicy.ACCEPT_ALL);
+        dispatcher = new TransactionDispatcher(Platform.get().defaultCallbackExecutor());
+        client = new OkHttpClient();
+        client.setCookieHandler(cookieManager);
+        client.setConnectionPool(new ConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS,
+                DEFAULT_KEEP_ALIVE_DURATION_MS));
+        // Measure the phases of the calls, if a metrics listener is set
+        client.setDns(new TransactionMetrics.TimedDns());
+        client.setSocketFactory(new TransactionMetrics.TimedSocketFactory());
+        client.networkInterceptors().add(new TransactionMetrics.TimingInterceptor());
+    }
+
+    private static volatile Storage defaultStorage;
+
+    Storage getStorage() {
+        return storage;
+    }
+
+    IdentifierManager getIdentifierManager() {
+        return identifierManager;
+    }
+
+    /**
+     * Initialization method of the global session.
+     *
+     * @param storage the Storage for accessing and modifying save and retrieve persistent
+     *                key-value pairs
+     * @throws IllegalStateException when Session is already initialized
+     */
+    public static synchronized void initialize(Storage storage) {
+        if (defaultStorage != null) {
+            throw new IllegalStateException("The initialize method may only be called once");
+        }
+        if (storage == null) {
+            throw new NullPointerException("The storage cannot be null");
+        }
+        defaultStorage = storage;
+    }
+
+    /**
+     * Returns whether the global session is initialized or not.
+     *
+     * @return true if initialized, otherwise false
+     */
+    public static boolean isInitialized() {
+        return defaultStorage != null;
+    }
+
+    /**
+     * Returns the global session object.
+     *
+     * @return session instance
+     */
+    public static Session getInstance() {
+        if (defaultStorage == null) {
+            throw new RuntimeException("Please call initialize method first");
+        }
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Send transaction to the recommender server.
+     *
+     * @param transaction an Transaction instance to be send
+     * @return the handle of the sent transaction
+     */
+    @NonNull
+    public TransactionHandle sendTransaction(@NonNull final Transaction transaction) {
+        return sendTransaction(transaction, null, null);
+    }
+
+    /**
+     * Send transaction to the recommender server.
+     *
+     * @param transaction  an Transaction instance to be send
+     * @param errorHandler will be called if an error occurs before send the http request
+     * @return the handle of the sent transaction
+     */
+    @NonNull
+    public TransactionHandle sendTransaction(@NonNull final Transaction transaction,
+                                             @Nullable final ErrorHandler errorHandler) {
+        return sendTransaction(transaction, errorHandler, null);
+    }
+
+    /**
+     * Send transaction to the recommender server.
+     *
+     * @param transaction       an Transaction instance to be send
+     * @param completionHandler will be called after the background processing finishes
+     * @return the handle of the sent transaction
+     */
+    @NonNull
+    public TransactionHandle sendTransaction(@NonNull final Transaction transaction,
+                                             @Nullable final CompletionHandler completionHandler) {
+        return sendTransaction(transaction, null, completionHandler);
+    }
+
+    /**
+     * Send transaction to the recommender server.
+     *
+     * @param transaction       an Transaction instance to be send
+     * @param errorHandler      will be called if an error occurs before send the http request
+     * @param completionHandler will be called after the background processing finishes
+     * @return the handle of the sent transaction
+     */
+    @NonNull
+    public TransactionHandle sendTransaction(@NonNull final Transaction transaction,
+                                             @Nullable final ErrorHandler errorHandler,
+                                             @Nullable final CompletionHandler completionHandler) {
+        if (transaction == null) {
+            throw new NullPointerException("The transaction cannot be null");
+        }
+        return send(transaction, new Completion(transaction, errorHandler, completionHandler,
+                -1));
+    }
+
+    /**
+     * Send transaction to the recommender server with a deadline. The http request is cancelled
+     * and the error handler is called with {@link Error#ERROR_TIMEOUT} if the transaction has
+     * not completed within the timeout, including the time spent waiting for the network and
+     * parsing the response. The recommendation results arriving later are dropped.
+     * The transactions with a deadline are not batched.
+     *
+     * @param transaction       an Transaction instance to be send
+     * @param timeout           the time the caller is willing to wait
+     * @param unit              the time unit of the timeout argument
+     * @param errorHandler      will be called if an error occurs or the deadline expires
+     * @param completionHandler will be called after the background processing finishes
+     * @return the handle of the sent transaction
+     */
+    @NonNull
+    public TransactionHandle sendTransaction(@NonNull final Transaction transaction,
+                                             long timeout, @NonNull TimeUnit unit,
+                                             @Nullable final ErrorHandler errorHandler,
+                                             @Nullable final CompletionHandler completionHandler) {
+        if (transaction == null) {
+            throw new NullPointerException("The transaction cannot be null");
+        }
+        if (unit == null) {
+            throw new NullPointerException("The unit cannot be null");
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("The timeout must be positive");
+        }
+        Completion completion = new Completion(transaction, errorHandler, completionHandler,
+                unit.toNanos(timeout));
+        // Not scheduled if the transaction could not be sent
+        send(transaction, completion);
+        scheduleDeadline(completion);
+        return completion;
+    }
+
+    /**
+     * Send transaction to the recommender server, the outcome is passed to the returned future.
+     * The future and the futures of the {@link Transaction#recommendAsync(RecommendationRequest)}
+     * commands are completed on the network executor, without the callback executor.
+     * Cancelling the future cancels the transaction. The transactions sent this way are not
+     * batched.
+     *
+     * @param transaction an Transaction instance to be send
+     * @return the future completed when the background processing finishes
+     */
+    @NonNull
+    public PredictFuture<Void> sendTransactionAsync(@NonNull Transaction transaction) {
+        if (transaction == null) {
+            throw new NullPointerException("The transaction cannot be null");
+        }
+        return sendAsync(transaction, -1, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Send transaction to the recommender server with a deadline, the outcome is passed to the
+     * returned future. The future fails with {@link Error#ERROR_TIMEOUT} if the transaction has
+     * not completed within the timeout.
+     *
+     * @param transaction an Transaction instance to be send
+     * @param timeout     the time the caller is willing to wait
+     * @param unit        the time unit of the timeout argument
+     * @return the future completed when the background processing finishes
+     * @see #sendTransactionAsync(Transaction)
+     */
+    @NonNull
+    public PredictFuture<Void> sendTransactionAsync(@NonNull Transaction transaction,
+                                                    long timeout, @NonNull TimeUnit unit) {
+        if (transaction == null) {
+            throw new NullPointerException("The transaction cannot be null");
+        }
+        if (unit == null) {
+            throw new NullPointerException("The unit cannot be null");
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("The timeout must be positive");
+        }
+        return sendAsync(transaction, timeout, unit);
+    }
+
+    private PredictFuture<Void> sendAsync(Transaction transaction, long timeout, TimeUnit unit) {
+        final PredictFuture<Void> future = new PredictFuture<Void>();
+        Completion completion = new Completion(transaction, new ErrorHandler() {
+            @Override
+            public void onError(@NonNull Error error) {
+                future.fail(error);
+            }
+        }, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                future.complete(null);
+            }
+        }, timeout > 0 ? unit.toNanos(timeout) : -1);
+        completion.setCallbackExecutor(PredictFuture.DIRECT_EXECUTOR);
+        final TransactionHandle handle;
+        try {
+            handle = send(transaction, completion);
+        } catch (Error e) {
+            // Not sent, eg. the merchant is missing
+            transaction.settleFutures(e);
+            future.fail(e);
+            return future;
+        }
+        if (timeout > 0) {
+            scheduleDeadline(completion);
+        }
+        future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                handle.cancel();
+            }
+        });
+        return future;
+    }
+
+    // The deadline counts from the creation of the completion
+    private void scheduleDeadline(final Completion completion) {
+        completion.setTimer(dispatcher.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                completion.deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        completion.expire();
+                    }
+                });
+            }
+        }, Math.max(0, completion.remainingNanos()), TimeUnit.NANOSECONDS));
+    }
+
+    private TransactionHandle send(Transaction transaction, Completion completion) {
+        if (transaction.hasRecommends()) {
+            // Registered before the parts, which may finish at any time
+            register(completion);
+            try {
+                sendRecommendTransaction(transaction, completion);
+            } catch (RuntimeException e) {
+                // Not sent, eg. the merchant is missing
+                unregister(completion);
+                throw e;
+            }
+            return completion;
+        }
+
+        TransactionMetrics metrics = completion.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        final String url = generateGET(transaction, context.get(),
+                Collections.<RecommendCommand>emptySet());
+        if (metrics != null) {
+            metrics.recordSince(MetricsEvent.Phase.BUILD_URL, start, url.length());
+        }
+
+        Log.d(TAG, url);
+
+        TransactionBatcher batcher = this.batcher;
+        if (batcher != null && completion.isBatchable()) {
+            // Tracking only, the handlers are not called and it cannot be cancelled
+            batcher.add(url, transaction);
+            completion.markDone();
+            return completion;
+        }
+
+        register(completion);
+        dispatcher.enqueue(new TransactionTask(url, transaction, completion, null, 1));
+        return completion;
+    }
+
+    // The pending transactions with a request tag
+    private final Map<Object, Set<Completion>> taggedTransactions =
+            new HashMap<Object, Set<Completion>>();
+
+    private void register(Completion completion) {
+        Object tag = completion.getRequestTag();
+        if (tag == null) {
+            return;
+        }
+        synchronized (taggedTransactions) {
+            Set<Completion> transactions = taggedTransactions.get(tag);
+            if (transactions == null) {
+                transactions = new HashSet<Completion>();
+                taggedTransactions.put(tag, transactions);
+            }
+            transactions.add(completion);
+        }
+    }
+
+    private void unregister(Completion completion) {
+        Object tag = completion.getRequestTag();
+        if (tag == null) {
+            return;
+        }
+        synchronized (taggedTransactions) {
+            Set<Completion> transactions = taggedTransactions.get(tag);
+            if (transactions != null && transactions.remove(completion)
+                    && transactions.isEmpty()) {
+                taggedTransactions.remove(tag);
+            }
+        }
+    }
+
+    /**
+     * Cancels all the pending transactions with the request tag, eg. when the user leaves the
+     * screen which sent them.
+     *
+     * @param requestTag the tag of the transactions
+     * @see Transaction#setRequestTag(Object)
+     * @see TransactionHandle#cancel()
+     */
+    public void cancelAll(@NonNull Object requestTag) {
+        if (requestTag == null) {
+            throw new NullPointerException("The requestTag cannot be null");
+        }
+        List<Completion> transactions;
+        synchronized (taggedTransactions) {
+            Set<Completion> tagged = taggedTransactions.get(requestTag);
+            if (tagged == null) {
+                return;
+            }
+            transactions = new ArrayList<Completion>(tagged);
+        }
+        Log.d(TAG, "Cancel " + transactions.size() + " transactions tagged " + requestTag);
+        for (Completion next : transactions) {
+            next.cancel();
+        }
+    }
+
+    private final InFlightRecommends inFlightRecommends = new InFlightRecommends();
+
+    private void sendRecommendTransaction(final Transaction transaction,
+                                          final Completion completion) {
+        RecommendationCache cache = this.cache;
+        List<RecommendCommand> recommends = transaction.getRecommends();
+        TransactionMetrics metrics = completion.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        // Both urls from the same snapshot, a concurrent setter cannot tear them
+        SessionContext snapshot = context.get();
+        // Everything except the recommends and the server session
+        String cacheContext = HttpUrl.parse(generateGET(transaction, snapshot,
+                new HashSet<RecommendCommand>(recommends)))
+                .newBuilder().removeAllQueryParameters("s").build().toString();
+        long buildNanos = metrics != null ? System.nanoTime() - start : 0;
+
+        final List<RecommendationResult> cachedResults = new ArrayList<RecommendationResult>();
+        Set<RecommendCommand> skippedRecommends = new HashSet<RecommendCommand>();
+        Map<String, String> sentKeys = new HashMap<String, String>();
+        SentRecommends sent = new SentRecommends(cache, sentKeys);
+        for (RecommendCommand next : recommends) {
+            RecommendationRequest request = next.getRecommendationRequest();
+            String key = RecommendationCache.createKey(cacheContext, request);
+            RecommendationResult result = cache != null ? cache.get(key) : null;
+            if (result != null && !result.isStale()) {
+                Log.d(TAG, "Cache hit " + request.getLogic());
+                cachedResults.add(result);
+                skippedRecommends.add(next);
+                continue;
+            }
+            if (result != null) {
+                // Deliver the stale result now, and the fresh one when it arrives
+                Log.d(TAG, "Stale cache hit " + request.getLogic());
+                cachedResults.add(result);
+            }
+            // Registered before joining, the request in flight may finish at any time
+            completion.addPart();
+            // The others do not join a recommend which may be cancelled at a deadline
+            if (inFlightRecommends.join(key, new JoinedRecommend(transaction, completion),
+                    completion.hasDeadline() ? null : sent)) {
+                Log.d(TAG, "Join the identical recommend in flight " + request.getLogic());
+                skippedRecommends.add(next);
+            } else {
+                // Not joined, sent by this transaction
+                completion.partFinished(null);
+                sentKeys.put(request.getLogic(), key);
+            }
+        }
+
+        if (!sentKeys.isEmpty() || transaction.hasTrackingCommands()) {
+            start = metrics != null ? System.nanoTime() : 0;
+            String url = generateGET(transaction, snapshot, skippedRecommends);
+            if (metrics != null) {
+                // Both the context and the url
+                metrics.record(MetricsEvent.Phase.BUILD_URL,
+                        buildNanos + System.nanoTime() - start, url.length());
+            }
+
+            Log.d(TAG, url);
+
+            completion.addPart();
+            if (!completion.hasDeadline()) {
+                completion.setSentRecommends(sent);
+            }
+            dispatcher.enqueue(new TransactionTask(url, transaction, completion, sent, 1));
+        }
+        completion.deliver(new Runnable() {
+            @Override
+            public void run() {
+                if (!cachedResults.isEmpty() && !completion.isDone()) {
+                    transaction.handleResults(cachedResults);
+                }
+                // All the parts are registered
+                completion.partFinished(null);
+            }
+        });
+    }
+
+    private volatile RecommendationCache cache;
+
+    /**
+     * Enables the in-memory cache of the recommendation results. A cached result is passed to the
+     * completion handler of the recommend command without a request to the server, while the
+     * tracking commands of the transaction are still sent.
+     *
+     * @param ttl        the time to live of a cached result
+     * @param unit       the time unit of the ttl argument
+     * @param maxEntries the maximum number of cached results
+     * @param maxBytes   the maximum approximate memory footprint of the cached results
+     * @throws IllegalArgumentException when maxEntries or maxBytes is less than 1
+     */
+    public void enableRecommendationCache(long ttl, @NonNull TimeUnit unit, int maxEntries,
+                                          long maxBytes) {
+        enableRecommendationCache(ttl, unit, maxEntries, maxBytes, false);
+    }
+
+    /**
+     * Enables the in-memory cache of the recommendation results, optionally in
+     * stale-while-revalidate mode. In this mode an expired result is passed to the completion
+     * handler right away flagged as stale, see {@link RecommendationResult#isStale()}, and the
+     * handler is called again with the fresh result after the round-trip. With zero ttl the last
+     * known result is always delivered first and refreshed.
+     *
+     * @param ttl                  the time to live of a cached result
+     * @param unit                 the time unit of the ttl argument
+     * @param maxEntries           the maximum number of cached results
+     * @param maxBytes             the maximum approximate memory footprint of the cached results
+     * @param staleWhileRevalidate true to deliver the expired results while they are refreshed
+     * @throws IllegalArgumentException when maxEntries or maxBytes is less than 1
+     */
+    public void enableRecommendationCache(long ttl, @NonNull TimeUnit unit, int maxEntries,
+                                          long maxBytes, boolean staleWhileRevalidate) {
+        if (unit == null) {
+            throw new NullPointerException("The unit cannot be null");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The maxEntries must be positive");
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("The maxBytes must be positive");
+        }
+        cache = new RecommendationCache(unit.toMillis(ttl), maxEntries, maxBytes,
+                staleWhileRevalidate);
+    }
+
+    /**
+     * Stores the results of the recommendation cache on the disk as well, so they survive the
+     * death of the process. The stored results are loaded into the memory in the background on
+     * the network executor, the transactions sent before the loading finished miss the cache and
+     * are sent to the recommender. Combined with the stale-while-revalidate mode the widgets can
+     * be rendered from the disk on a cold start.
+     *
+     * @param directory the directory of the stored results, eg. Context.getCacheDir()
+     * @param maxBytes  the maximum size of the stored results, the oldest are deleted
+     * @param maxAge    the maximum age of the stored results, older are deleted
+     * @param unit      the time unit of the maxAge argument
+     * @throws IllegalStateException when the recommendation cache is not enabled
+     */
+    public void enableRecommendationDiskCache(@NonNull File directory, long maxBytes,
+                                              long maxAge, @NonNull TimeUnit unit) {
+        if (directory == null) {
+            throw new NullPointerException("The directory cannot be null");
+        }
+        if (unit == null) {
+            throw new NullPointerException("The unit cannot be null");
+        }
+        final RecommendationCache cache = this.cache;
+        if (cache == null) {
+            throw new IllegalStateException("The recommendation cache is not enabled");
+        }
+        cache.setDiskCache(new RecommendationDiskCache(directory, maxBytes,
+                unit.toMillis(maxAge)));
+        dispatcher.enqueue(new Runnable() {
+            @Override
+            public void run() {
+                cache.preload();
+            }
+        });
+    }
+
+    /**
+     * Disables and drops the cache of the recommendation results.
+     */
+    public void disableRecommendationCache() {
+        cache = null;
+    }
+
+    /**
+     * Returns the cache of the recommendation results, or null if it is not enabled.
+     *
+     * @return the cache
+     */
+    @Nullable
+    public RecommendationCache getRecommendationCache() {
+        return cache;
+    }
+
+    private volatile TransactionBatcher batcher;
+
+    /**
+     * Enables the batching of the tracking-only transactions, the ones without recommend
+     * commands. These transactions are collected until the time window elapses or the count
+     * threshold is reached, then sent one after another in their original order over the same
+     * kept alive connection. A batched transaction failing transiently is retried before the rest
+     * of the batch, which waits for the retry without holding a network thread, see
+     * {@link #setRetryPolicy(RetryPolicy)}. The error and completion handlers of the batched
+     * transactions are not called.
+     *
+     * @param window          the time to collect the transactions, starting with the first one
+     * @param unit            the time unit of the window argument
+     * @param maxTransactions the number of collected transactions which triggers the sending
+     * @throws IllegalArgumentException when maxTransactions is less than 1
+     */
+    public void enableBatching(long window, @NonNull TimeUnit unit, int maxTransactions) {
+        if (unit == null) {
+            throw new NullPointerException("The unit cannot be null");
+        }
+        if (maxTransactions < 1) {
+            throw new IllegalArgumentException("The maxTransactions must be positive");
+        }
+        TransactionBatcher old = batcher;
+        batcher = new TransactionBatcher(unit.toMillis(window), maxTransactions,
+                dispatcher.getScheduler(), new TransactionBatcher.Sender() {
+            @Override
+            public void startSending(TransactionBatcher batcher) {
+                dispatcher.enqueue(new BatchTask(batcher));
+            }
+        });
+        if (old != null) {
+            old.flush();
+        }
+    }
+
+    /**
+     * Disables the batching, the collected transactions are sent immediately.
+     */
+    public void disableBatching() {
+        TransactionBatcher old = batcher;
+        batcher = null;
+        if (old != null) {
+            old.flush();
+        }
+    }
+
+    /**
+     * Sends the collected tracking-only transactions without waiting for the end of the time
+     * window, eg. when the application goes to background.
+     */
+    public void flushBatch() {
+        TransactionBatcher current = batcher;
+        if (current != null) {
+            current.flush();
+        }
+    }
+
+    /**
+     * Sets the executor which runs the http requests and the response processing. The number of
+     * concurrently running transactions is limited by the session, see
+     * {@link #setMaxConcurrentTransactions(int)}. Default: a cached thread pool.
+     *
+     * @param networkExecutor the executor of the background processing
+     */
+    public void setNetworkExecutor(@NonNull Executor networkExecutor) {
+        if (networkExecutor == null) {
+            throw new NullPointerException("The networkExecutor cannot be null");
+        }
+        dispatcher.setNetworkExecutor(networkExecutor);
+    }
+
+    /**
+     * Sets the executor which invokes the completion and error handlers. Default: the UI thread.
+     *
+     * @param callbackExecutor the executor of the handlers
+     */
+    public void setCallbackExecutor(@NonNull Executor callbackExecutor) {
+        if (callbackExecutor == null) {
+            throw new NullPointerException("The callbackExecutor cannot be null");
+        }
+        dispatcher.setCallbackExecutor(callbackExecutor);
+    }
+
+    /**
+     * Sets the maximum number of transactions processed in parallel. The transactions over the
+     * limit are queued in the order of sending. Default: 4.
+     *
+     * @param maxConcurrentTransactions the maximum number of parallel transactions, at least 1
+     * @throws IllegalArgumentException when maxConcurrentTransactions is less than 1
+     */
+    public void setMaxConcurrentTransactions(int maxConcurrentTransactions) {
+        if (maxConcurrentTransactions < 1) {
+            throw new IllegalArgumentException("The maxConcurrentTransactions must be positive");
+        }
+        dispatcher.setMaxConcurrency(maxConcurrentTransactions);
+    }
+
+    /**
+     * Returns the maximum number of transactions processed in parallel.
+     *
+     * @return the maximum number of parallel transactions
+     */
+    public int getMaxConcurrentTransactions() {
+        return dispatcher.getMaxConcurrency();
+    }
+
+    private volatile CircuitBreaker circuitBreaker;
+
+    /**
+     * Sets the circuit breaker which stops sending the transactions while the recommender fails.
+     * Default: null, the transactions are always sent.
+     *
+     * @param circuitBreaker the circuit breaker or null
+     */
+    public void setCircuitBreaker(@Nullable CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Returns the circuit breaker.
+     *
+     * @return the circuit breaker or null
+     */
+    @Nullable
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    private volatile RetryPolicy retryPolicy;
+
+    /**
+     * Sets the policy which retries the transactions failed because of a transient error.
+     * Default: null, the failed transactions are not retried.
+     *
+     * @param retryPolicy the retry policy or null
+     */
+    public void setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the retry policy.
+     *
+     * @return the retry policy or null
+     */
+    @Nullable
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    private volatile MetricsListener metricsListener;
+
+    /**
+     * Sets the listener of the phases of the transactions sent after this call, eg. a
+     * {@link MetricsHistogram}. The phases are not measured without a listener. Default: null.
+     *
+     * @param metricsListener the metrics listener or null
+     */
+    public void setMetricsListener(@Nullable MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Returns the metrics listener.
+     *
+     * @return the metrics listener or null
+     */
+    @Nullable
+    public MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Configures the connection pool shared by the transactions. Connections are kept alive
+     * between transactions and evicted after staying idle for the keep alive duration.
+     * Default: 5 idle connections, 5 minutes.
+     *
+     * @param maxIdleConnections the maximum number of idle connections kept in the pool
+     * @param keepAliveDuration  the time an idle connection is kept alive
+     * @param unit               the time unit of the keepAliveDuration argument
+     */
+    public void setConnectionPool(int maxIdleConnections, long keepAliveDuration,
+                                  @NonNull TimeUnit unit) {
+        if (unit == null) {
+            throw new NullPointerException("The unit cannot be null");
+        }
+        ConnectionPool old = client.getConnectionPool();
+        client.setConnectionPool(new ConnectionPool(maxIdleConnections, keepAliveDuration, unit));
+        if (old != null) {
+            old.evictAll();
+        }
+    }
+
+    static final int RESPONSE_BUFFER_SIZE = 8192;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The decoders by encoding, replaced on change
+    private volatile Map<String, ContentDecoder> decoders =
+            Collections.<String, ContentDecoder>singletonMap("gzip", new GzipDecoder());
+    private volatile String acceptEncoding = "gzip";
+
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+
+    /**
+     * Registers a decoder of a content encoding, eg. brotli. The encoding is advertised in the
+     * Accept-Encoding header of the requests, preferred over the ones registered earlier. The
+     * responses are decompressed while they are parsed. Gzip is registered by default.
+     *
+     * @param decoder the decoder of the encoding
+     */
+    public synchronized void addContentDecoder(@NonNull ContentDecoder decoder) {
+        if (decoder == null) {
+            throw new NullPointerException("The decoder cannot be null");
+        }
+        String encoding = decoder.getEncoding().toLowerCase(Locale.US);
+        Map<String, ContentDecoder> map = new LinkedHashMap<String, ContentDecoder>();
+        map.put(encoding, decoder);
+        for (Map.Entry<String, ContentDecoder> next : decoders.entrySet()) {
+            if (!next.getKey().equals(encoding)) {
+                map.put(next.getKey(), next.getValue());
+            }
+        }
+        decoders = map;
+        acceptEncoding = StringUtil.toStringWithDelimiter(map.keySet(), ", ");
+    }
+
+    /**
+     * Returns the number of response bytes received, as sent by the server, possibly compressed.
+     *
+     * @return the received bytes
+     */
+    public long getReceivedResponseBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * Returns the number of response bytes after decompression.
+     *
+     * @return the decompressed bytes
+     */
+    public long getDecodedResponseBytes() {
+        return decodedBytes.get();
+    }
+
+    private InputStream decode(InputStream in, String encoding) throws IOException {
+        if (encoding == null || "identity".equalsIgnoreCase(encoding)) {
+            return in;
+        }
+        ContentDecoder decoder = decoders.get(encoding.toLowerCase(Locale.US));
+        if (decoder == null) {
+            throw new Error("Unsupported content encoding " + encoding,
+                    Error.ERROR_UNSUPPORTED_CONTENT_ENCODING, null);
+        }
+        return decoder.decode(in, RESPONSE_BUFFER_SIZE);
+    }
+
+    private void recordResponseBytes(long received, long decoded) {
+        receivedBytes.addAndGet(received);
+        decodedBytes.addAndGet(decoded);
+        Log.d(TAG, "Response " + received + " bytes received, " + decoded + " bytes decoded");
+    }
+
+    static final int DEFAULT_POST_THRESHOLD = Integer.MAX_VALUE;
+
+    private static final MediaType FORM_CONTENT_TYPE =
+            MediaType.parse("application/x-www-form-urlencoded");
+
+    private volatile int postThreshold = DEFAULT_POST_THRESHOLD;
+    private volatile boolean gzipPostBody;
+
+    /**
+     * Sets the url length over which the transaction is sent as a POST request. The parameters
+     * of these transactions are sent form encoded in the body instead of the url, so that large
+     * carts and filter lists do not hit the url length limits of the proxies. The transport is
+     * chosen for every request by the length of its url. Default: always GET.
+     *
+     * @param maxUrlLength the maximum length of the url of a GET request
+     * @param gzip         true to compress the body of the POST requests
+     * @throws IllegalArgumentException when maxUrlLength is negative
+     */
+    public void setPostThreshold(int maxUrlLength, boolean gzip) {
+        if (maxUrlLength < 0) {
+            throw new IllegalArgumentException("The maxUrlLength cannot be negative");
+        }
+        this.postThreshold = maxUrlLength;
+        this.gzipPostBody = gzip;
+    }
+
+    /**
+     * Returns the url length over which the transaction is sent as a POST request.
+     *
+     * @return the maximum length of the url of a GET request
+     */
+    public int getPostThreshold() {
+        return postThreshold;
+    }
+
+    /**
+     * Closes and removes the idle connections of the connection pool.
+     */
+    public void evictIdleConnections() {
+        client.getConnectionPool().evictAll();
+    }
+
+    OkHttpClient getClient() {
+        return client;
+    }
+
+    private volatile OfflineQueue offlineQueue;
+    private final AtomicBoolean replaying = new AtomicBoolean();
+
+    /**
+     * Enables the persistent queue of the transactions which could not be sent because of a
+     * network error, eg. a failed connection, or a server error. The tracking commands of these
+     * transactions (everything except the recommends) are stored in the directory, and sent again
+     * in their original order after the next successful transaction, or when
+     * {@link #flushOfflineQueue()} is called. The error handler of the failed transaction is still
+     * called. A transaction which may have reached the server, eg. timed out while waiting for the
+     * response, is not queued, it would be tracked twice.
+     *
+     * @param directory       the directory of the queue, eg. Context.getFilesDir()
+     * @param maxTransactions the maximum number of queued transactions, the oldest are dropped
+     * @param maxAge          the maximum age of the queued transactions, older are dropped
+     * @param unit            the time unit of the maxAge argument
+     */
+    public void enableOfflineQueue(@NonNull File directory, int maxTransactions, long maxAge,
+                                   @NonNull TimeUnit unit) {
+        if (directory == null) {
+            throw new NullPointerException("The directory cannot be null");
+        }
+        if (unit == null) {
+            throw new NullPointerException("The unit cannot be null");
+        }
+        if (maxTransactions < 1) {
+            throw new IllegalArgumentException("The maxTransactions must be positive");
+        }
+        offlineQueue = new OfflineQueue(directory, maxTransactions, unit.toMillis(maxAge));
+    }
+
+    /**
+     * Disables the persistent queue. The already queued transactions are kept on the disk and
+     * sent when the queue is enabled again.
+     */
+    public void disableOfflineQueue() {
+        offlineQueue = null;
+    }
+
+    /**
+     * Sends the queued transactions in the background. Call it when the network connectivity is
+     * restored.
+     */
+    public void flushOfflineQueue() {
+        final OfflineQueue queue = offlineQueue;
+        if (queue == null || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        dispatcher.enqueue(new ReplayTask(queue));
+    }
+
+    OfflineQueue getOfflineQueue() {
+        return offlineQueue;
+    }
+
+    private void queueTransaction(String url, Transaction transaction) {
+        OfflineQueue queue = offlineQueue;
+        if (queue != null && transaction.hasTrackingCommands()) {
+            Log.d(TAG, "Queue transaction for later");
+            queue.add(Transaction.removeRecommends(url));
+        }
+    }
+
+    // Swapped atomically, every transaction is serialized from a single snapshot
+    private final AtomicReference<SessionContext> context =
+            new AtomicReference<SessionContext>(SessionContext.DEFAULT);
+
+    SessionContext getContext() {
+        return context.get();
+    }
+
+    /**
+     * Returns the Merchant ID.
+     *
+     * @return merchant ID
+     */
+    @Nullable
+    public String getMerchantId() {
+        return context.get().getMerchantId();
+    }
+
+    /**
+     * Sets the Merchant ID.
+     *
+     * @param merchantId merchant ID
+     */
+    public void setMerchantId(@NonNull String merchantId) {
+        if (merchantId == null) {
+            throw new NullPointerException("The merchantId cannot be null");
+        }
+        SessionContext current;
+        do {
+            current = context.get();
+        } while (!context.compareAndSet(current, current.withMerchantId(merchantId)));
+    }
+
+    /**
+     * Returns the Customer email address.
+     *
+     * @return customer email address
+     */
+    @Nullable
+    public String getCustomerEmail() {
+        return context.get().getCustomerEmail();
+    }
+
+    /**
+     * Sets the Customer email address.
+     *
+     * @param customerEmail customer email address
+     */
+    public void setCustomerEmail(@Nullable String customerEmail) {
+        SessionContext current;
+        do {
+            current = context.get();
+        } while (!context.compareAndSet(current, current.withCustomerEmail(customerEmail)));
+    }
+
+    /**
+     * Returns the Customer ID.
+     *
+     * @return customer ID
+     */
+    @Nullable
+    public String getCustomerId() {
+        return context.get().getCustomerId();
+    }
+
+    /**
+     * Sets the Customer ID.
+     *
+     * @param customerId customer ID
+     */
+    public void setCustomerId(@Nullable String customerId) {
+        SessionContext current;
+        do {
+            current = context.get();
+        } while (!context.compareAndSet(current, current.withCustomerId(customerId)));
+    }
+
+    /**
+     * Returns the Advertising ID.
+     *
+     * @return advertising ID
+     */
+    @Nullable
+    public String getAdvertisingId() {
+        return identifierManager.getAdvertisingIdentifier();
+    }
+
+    String getSession() {
+        return context.get().getSession();
+    }
+
+    String getVisitor() {
+        return context.get().getVisitor();
+    }
+
+    // The session and visitor of the response to the url
+    void setSession(String url, String session, String visitor) {
+        SessionContext current;
+        do {
+            current = context.get();
+            if (!current.isBaseOf(url)) {
+                Log.d(TAG, "Ignore the session of another merchant or server");
+                return;
+            }
+        } while (!context.compareAndSet(current, current.withSession(session, visitor)));
+    }
+
+    void handleCookies(List<HttpCookie> cookies) {
+        Log.d(TAG, "Find cookie, cdv");
+        for (HttpCookie cookie : cookies) {
+            if ("cdv".equals(cookie.getName()) && cookie.getValue() != null) {
+                Log.d(TAG, "Found cookie, " + cookie.getName() + "=" + cookie.getValue());
+                identifierManager.setAdvertisingIdentifier(cookie.getValue());
+                return;
+            }
+        }
+        throw new Error("Missing 'cdv' cookie", Error.ERROR_MISSING_CDV_COOKIE, null);
+    }
+
+    static final String SERVER = "recommender.scarabresearch.com";
+
+    // Redirects the transactions to another server, for testing only
+    void setServer(String host, int port) {
+        SessionContext current;
+        do {
+            current = context.get();
+        } while (!context.compareAndSet(current, current.withServer(host, port)));
+    }
+
+    /**
+     * Set protocol to https if secure otherwise set to http.
+     *
+     * @param secure <tt>true</tt> if the protocol is https
+     */
+    public void setSecure(boolean secure) {
+        SessionContext current;
+        do {
+            current = context.get();
+        } while (!context.compareAndSet(current, current.withSecure(secure)));
+    }
+
+    /**
+     * Returns true if the communication is secured.
+     *
+     * @return true if the protocol is https or false if http
+     */
+    public boolean isSecure() {
+        return context.get().isSecure();
+    }
+
+    String generateGET(Transaction transaction) {
+        return generateGET(transaction, context.get(),
+                Collections.<RecommendCommand>emptySet());
+    }
+
+    String generateGET(Transaction transaction, SessionContext context,
+                       Set<RecommendCommand> skippedRecommends) {
+        // Validate merchantId
+        String base = context.getBaseUrl();
+        if (base == null) {
+            // The merchantId is required
+            throw new Error("The merchantId is required", Error.ERROR_MISSING_MERCHANT_ID, null);
+        }
+
+        // Serialize query
+        QueryWriter writer = QueryWriter.obtain();
+        transaction.serialize(writer, context, identifierManager.getAdvertisingIdentifier(),
+                skippedRecommends);
+        String query = writer.toString();
+        Log.d(TAG, query);
+        return new StringBuilder(base.length() + 1 + query.length())
+                .append(base).append('?').append(query).toString();
+    }
+
+    private Response execute(String url) throws IOException {
+        return newCall(url).execute();
+    }
+
+    private Call newCall(String url) throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .header("User-Agent", Platform.get().userAgent())
+                .header("Accept-Encoding", acceptEncoding);
+        int query = url.indexOf('?');
+        if (url.length() > postThreshold && query != -1) {
+            // Too long for the proxies, send the parameters in the body
+            Log.d(TAG, "Send " + url.length() + " chars long transaction as POST");
+            builder.url(new URL(url.substring(0, query)))
+                    .post(createFormBody(url.substring(query + 1), gzipPostBody));
+            if (gzipPostBody) {
+                builder.header("Content-Encoding", "gzip");
+            }
+        } else {
+            builder.url(new URL(url));
+        }
+        return client.newCall(builder.build());
+    }
+
+    static RequestBody createFormBody(String encodedQuery, boolean gzip) throws IOException {
+        Buffer buffer = new Buffer();
+        if (gzip) {
+            BufferedSink sink = Okio.buffer(new GzipSink(buffer));
+            sink.writeUtf8(encodedQuery);
+            sink.close();
+        } else {
+            buffer.writeUtf8(encodedQuery);
+        }
+        return RequestBody.create(FORM_CONTENT_TYPE, buffer.readByteString());
+    }
+
+    private static void closeBody(Response response) {
+        if (response != null) {
+            try {
+                response.body().close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close response body");
+            }
+        }
+    }
+
+    /**
+     * The result of a failed attempt to be retried.
+     */
+    private static class Retry {
+
+        final long delayMillis;
+
+        Retry(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+    }
+
+    private Retry retry(int attempt, @Nullable String retryAfter) {
+        RetryPolicy policy = retryPolicy;
+        if (policy == null) {
+            return null;
+        }
+        long delay = policy.nextDelayMillis(attempt, retryAfter);
+        return delay >= 0 ? new Retry(delay) : null;
+    }
+
+    // Returned by a cancelled transaction
+    private static final Object CANCELLED = new Object();
+
+    private static Error createTimeoutError() {
+        return new Error("The transaction timed out", Error.ERROR_TIMEOUT, null);
+    }
+
+    private ScheduledFuture<?> scheduleCancel(final Call call, long delayNanos) {
+        return dispatcher.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Deadline expired, cancel the http request");
+                call.cancel();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Object process(String url, Transaction transaction, int attempt,
+                           @Nullable Completion completion) {
+        // Invoked on the network executor
+        boolean hasDeadline = completion != null && completion.hasDeadline();
+        if (completion != null && completion.isAborted()) {
+            return CANCELLED;
+        }
+        if (hasDeadline && completion.remainingNanos() <= 0) {
+            // Expired while waiting for the network executor or a retry
+            return createTimeoutError();
+        }
+        Response response = null;
+        ScheduledFuture<?> cancel = null;
+        try {
+            CircuitBreaker breaker = circuitBreaker;
+            if (breaker != null && !breaker.tryAcquire()) {
+                // Fail fast, keep the tracking commands for later
+                queueTransaction(url, transaction);
+                return new Error("The circuit breaker is open", Error.ERROR_CIRCUIT_OPEN, null);
+            }
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Call call = newCall(url);
+                if (completion != null) {
+                    completion.setCall(call);
+                }
+                if (hasDeadline) {
+                    // Connect, read and parse within the remaining time
+                    cancel = scheduleCancel(call, completion.remainingNanos());
+                }
+                response = call.execute();
+                failed = response.code() == 429 || response.code() >= 500;
+            } catch (IOException e) {
+                if (completion != null && completion.isAborted()) {
+                    return CANCELLED;
+                }
+                if (hasDeadline && completion.remainingNanos() <= 0) {
+                    // Cancelled, the server may have received the request
+                    return createTimeoutError();
+                }
+                Retry retry = RetryPolicy.isTransient(e) ? retry(attempt, null) : null;
+                if (retry != null) {
+                    Log.w(TAG, "Attempt " + attempt + " failed: " + e.getMessage());
+                    return retry;
+                }
+                if (OfflineQueue.isUnsent(e)) {
+                    // Network error, keep the tracking commands for later
+                    queueTransaction(url, transaction);
+                }
+                throw e;
+            } finally {
+                if (breaker != null) {
+                    if (completion != null && completion.isAborted()) {
+                        // Says nothing about the recommender
+                        breaker.onIgnored();
+                    } else {
+                        breaker.onResult(failed, System.nanoTime() - start);
+                    }
+                }
+            }
+            if (completion != null && completion.isAborted()) {
+                // Cancelled while waiting for the response, skip parsing
+                return CANCELLED;
+            }
+            int statusCode = response.code();
+            if (RetryPolicy.isTransient(statusCode)) {
+                Retry retry = retry(attempt, response.header("Retry-After"));
+                if (retry != null) {
+                    Log.w(TAG, "Attempt " + attempt + " failed: http status code " + statusCode);
+                    return retry;
+                }
+            }
+            if (statusCode >= 500) {
+                // Server outage, keep the tracking commands for later
+                queueTransaction(url, transaction);
+            }
+            if (statusCode >= 300) {
+                return new Error("Unexpected http status code " + statusCode,
+                        Error.ERROR_BAD_HTTP_STATUS, null);
+            }
+            RetryPolicy policy = retryPolicy;
+            if (policy != null) {
+                policy.onSuccess();
+            }
+            // Find cdv
+            handleCookies(cookieManager.getCookieStore().getCookies());
+            // Parse json content, decoded while it is read
+            TransactionMetrics metrics = completion != null ? completion.metrics : null;
+            long parseStart = metrics != null ? System.nanoTime() : 0;
+            CountingInputStream received = new CountingInputStream(response.body().byteStream(),
+                    metrics != null);
+            CountingInputStream decoded = new CountingInputStream(
+                    decode(received, response.header("Content-Encoding")));
+            Reader r = new InputStreamReader(decoded, UTF_8);
+            ResponseParser parser = new ResponseParser(r);
+            recordResponseBytes(received.getCount(), decoded.getCount());
+            if (metrics != null) {
+                // The parser reads the body while it arrives, the waiting is not parsing
+                long readNanos = received.getReadNanos();
+                metrics.recordAttempt(MetricsEvent.Phase.DOWNLOAD, readNanos, received.getCount());
+                metrics.recordAttempt(MetricsEvent.Phase.PARSE,
+                        System.nanoTime() - parseStart - readNanos, parser.getResults().size());
+            }
+            // Store session and visitor
+            setSession(url, parser.getSession(), parser.getVisitor());
+            // The network is available, send the queued transactions
+            OfflineQueue queue = offlineQueue;
+            if (queue != null && queue.size() > 0) {
+                flushOfflineQueue();
+            }
+            return parser;
+        } catch (Exception e) {
+            if (completion != null && completion.isAborted()) {
+                return CANCELLED;
+            }
+            if (hasDeadline && completion.remainingNanos() <= 0) {
+                // Cancelled while reading the response
+                return createTimeoutError();
+            }
+            if (e instanceof Error) {
+                return e;
+            }
+            e.printStackTrace();
+            return new Error("An unknown error has occurred: " + e.getMessage(), Error.ERROR_UNKNOWN, e);
+        } finally {
+            if (cancel != null) {
+                cancel.cancel(false);
+            }
+            closeBody(response);
+        }
+    }
+
+    private class BatchTask implements TransactionDispatcher.RejectableTask {
+
+        private final TransactionBatcher batcher;
+        // The rest of a batch, starting with the retried transaction
+        private final List<TransactionBatcher.Entry> entries;
+        private final int attempt;
+
+        BatchTask(TransactionBatcher batcher) {
+            this(batcher, Collections.<TransactionBatcher.Entry>emptyList(), 1);
+        }
+
+        private BatchTask(TransactionBatcher batcher, List<TransactionBatcher.Entry> entries,
+                          int attempt) {
+            this.batcher = batcher;
+            this.entries = entries;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public void run() {
+            List<TransactionBatcher.Entry> entries = this.entries;
+            int attempt = this.attempt;
+            if (entries.isEmpty()) {
+                entries = batcher.takeFlushed();
+            }
+            while (!entries.isEmpty()) {
+                Log.d(TAG, "Send " + entries.size() + " batched transactions");
+                for (int i = 0; i < entries.size(); i++) {
+                    TransactionBatcher.Entry next = entries.get(i);
+                    Object o = process(next.url, next.transaction, attempt, null);
+                    if (o instanceof Retry) {
+                        // The rest of the batch waits to keep the order, without holding a thread
+                        scheduleRetry(new BatchTask(batcher,
+                                new ArrayList<TransactionBatcher.Entry>(
+                                        entries.subList(i, entries.size())), attempt + 1),
+                                ((Retry) o).delayMillis);
+                        return;
+                    }
+                    attempt = 1;
+                    if (o instanceof Error) {
+                        Log.w(TAG, "Unable to send batched transaction: "
+                                + ((Error) o).getMessage());
+                    }
+                }
+                entries = batcher.takeFlushed();
+            }
+        }
+
+        @Override
+        public void rejected(RejectedExecutionException e) {
+            Log.w(TAG, "Unable to send batched transactions: " + e.getMessage());
+            batcher.sendingFailed(entries);
+        }
+
+    }
+
+    private class ReplayTask implements TransactionDispatcher.RejectableTask {
+
+        private final OfflineQueue queue;
+
+        ReplayTask(OfflineQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (OfflineQueue.Entry next : queue.getEntries()) {
+                    Response response = null;
+                    try {
+                        response = execute(next.url);
+                        int statusCode = response.code();
+                        if (statusCode >= 500) {
+                            Log.w(TAG, "Unexpected http status code " + statusCode
+                                    + ", keep the queued transactions");
+                            return;
+                        }
+                        if (statusCode >= 300) {
+                            Log.w(TAG, "Unexpected http status code " + statusCode
+                                    + ", drop the queued transaction");
+                        }
+                        queue.remove(next);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to send the queued transactions: " + e.getMessage());
+                        return;
+                    } finally {
+                        closeBody(response);
+                    }
+                }
+            } finally {
+                replaying.set(false);
+            }
+        }
+
+        @Override
+        public void rejected(RejectedExecutionException e) {
+            Log.w(TAG, "Unable to send the queued transactions: " + e.getMessage());
+            replaying.set(false);
+        }
+
+    }
+
+    /**
+     * Invokes the handlers of a transaction after all of its parts finished: its own request, the
+     * identical recommends in flight it joined and the delivery of the cached results. Invoked on
+     * the callback executor. Nothing is invoked after the deadline expired or the transaction was
+     * cancelled.
+     */
+    private class Completion extends TransactionHandle {
+
+        private final Transaction transaction;
+        private final ErrorHandler errorHandler;
+        private final CompletionHandler completionHandler;
+        // Starts with the registration of the parts
+        private final AtomicInteger parts = new AtomicInteger(1);
+        private volatile Error error;
+
+        private final long deadlineNanos;
+        private final boolean hasDeadline;
+        private volatile ScheduledFuture<?> timer;
+
+        private volatile SentRecommends sentRecommends;
+        private volatile Call call;
+        private volatile boolean aborted;
+        private volatile Executor callbackExecutor;
+
+        // Null if no metrics listener was set when the transaction was sent
+        final TransactionMetrics metrics;
+
+        /**
+         * @param timeoutNanos the time left until the deadline, or -1 if there is no deadline
+         */
+        Completion(Transaction transaction, ErrorHandler errorHandler,
+                   CompletionHandler completionHandler, long timeoutNanos) {
+            super(transaction.getRequestTag());
+            this.transaction = transaction;
+            this.errorHandler = errorHandler;
+            this.completionHandler = completionHandler;
+            this.hasDeadline = timeoutNanos >= 0;
+            this.deadlineNanos = System.nanoTime() + Math.max(0, timeoutNanos);
+            MetricsListener listener = metricsListener;
+            this.metrics = listener != null ? new TransactionMetrics(listener) : null;
+        }
+
+        boolean hasDeadline() {
+            return hasDeadline;
+        }
+
+        long remainingNanos() {
+            return deadlineNanos - System.nanoTime();
+        }
+
+        void setTimer(ScheduledFuture<?> timer) {
+            this.timer = timer;
+            if (isDone()) {
+                // Finished before the timer was set
+                timer.cancel(false);
+            }
+        }
+
+        /**
+         * Sets the executor of the handlers instead of the callback executor of the session.
+         */
+        void setCallbackExecutor(Executor callbackExecutor) {
+            this.callbackExecutor = callbackExecutor;
+        }
+
+        void deliver(Runnable callback) {
+            Executor executor = callbackExecutor;
+            if (executor != null) {
+                executor.execute(callback);
+            } else {
+                dispatcher.deliver(callback);
+            }
+        }
+
+        /**
+         * Returns true if the transaction may wait in the batch, where its handlers are not
+         * invoked.
+         */
+        boolean isBatchable() {
+            return !hasDeadline && callbackExecutor == null;
+        }
+
+        void setSentRecommends(SentRecommends sentRecommends) {
+            this.sentRecommends = sentRecommends;
+        }
+
+        /**
+         * Sets the http call of the current attempt.
+         */
+        void setCall(Call call) {
+            this.call = call;
+            if (aborted) {
+                call.cancel();
+            }
+        }
+
+        /**
+         * Returns true if the request of the transaction is not needed anymore.
+         */
+        boolean isAborted() {
+            return aborted;
+        }
+
+        void expire() {
+            if (markDone()) {
+                finished();
+                Error timeout = createTimeoutError();
+                transaction.settleFutures(timeout);
+                if (errorHandler != null) {
+                    errorHandler.onError(timeout);
+                }
+                recordTotal(timeout);
+            }
+        }
+
+        @Override
+        void onCancel() {
+            finished();
+            transaction.cancelFutures();
+            SentRecommends sent = sentRecommends;
+            if (sent != null && !inFlightRecommends.abandon(sent.getKeys(), sent)) {
+                // Others joined the recommends, only the handlers are dropped
+                return;
+            }
+            aborted = true;
+            Call current = call;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        void addPart() {
+            parts.incrementAndGet();
+        }
+
+        void partFinished(Error e) {
+            if (e != null && error == null) {
+                error = e;
+            }
+            if (parts.decrementAndGet() == 0 && markDone()) {
+                finished();
+                transaction.settleFutures(error);
+                if (error != null) {
+                    // Forward error
+                    if (errorHandler != null) {
+                        errorHandler.onError(error);
+                    }
+                } else if (completionHandler != null) {
+                    // Completed
+                    completionHandler.onCompletion(null);
+                }
+                recordTotal(error);
+            }
+        }
+
+        private void recordTotal(Error e) {
+            if (metrics != null) {
+                metrics.recordSince(MetricsEvent.Phase.TOTAL, metrics.getStartNanos(),
+                        e != null ? e.getErrorCode() : 0);
+            }
+        }
+
+        private void finished() {
+            ScheduledFuture<?> current = timer;
+            if (current != null) {
+                current.cancel(false);
+            }
+            unregister(this);
+        }
+
+    }
+
+    /**
+     * A recommend of a transaction waiting for the identical recommend in flight.
+     */
+    private class JoinedRecommend implements InFlightRecommends.Waiter {
+
+        private final Transaction transaction;
+        private final Completion completion;
+
+        JoinedRecommend(Transaction transaction, Completion completion) {
+            this.transaction = transaction;
+            this.completion = completion;
+        }
+
+        @Override
+        public void onFinished(final RecommendationResult result, final Error error) {
+            completion.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    if (result != null && !completion.isDone()) {
+                        transaction.handleResults(Collections.singletonList(result));
+                    }
+                    completion.partFinished(error);
+                }
+            });
+        }
+
+    }
+
+    /**
+     * The recommends sent by a transaction, by logic. Their results are stored in the cache and
+     * passed to the identical recommends which joined them.
+     */
+    private class SentRecommends {
+
+        private final RecommendationCache cache;
+        private final Map<String, String> keys;
+
+        SentRecommends(RecommendationCache cache, Map<String, String> keys) {
+            this.cache = cache;
+            this.keys = keys;
+        }
+
+        Collection<String> getKeys() {
+            return keys.values();
+        }
+
+        void finished(Object o) {
+            List<RecommendationResult> results = o instanceof ResponseParser
+                    ? ((ResponseParser) o).getResults()
+                    : Collections.<RecommendationResult>emptyList();
+            Error error = o instanceof Error ? (Error) o : null;
+            for (Map.Entry<String, String> next : keys.entrySet()) {
+                RecommendationResult result = null;
+                for (RecommendationResult r : results) {
+                    if (next.getKey().equals(r.getFeatureId())) {
+                        result = r;
+                        break;
+                    }
+                }
+                if (cache != null && result != null) {
+                    cache.put(next.getValue(), result);
+                }
+                for (InFlightRecommends.Waiter waiter
+                        : inFlightRecommends.complete(next.getValue(), this)) {
+                    waiter.onFinished(result, error);
+                }
+            }
+        }
+
+    }
+
+    private void scheduleRetry(final TransactionDispatcher.RejectableTask task,
+                               long delayMillis) {
+        Log.d(TAG, "Retry in " + delayMillis + " ms");
+        dispatcher.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.enqueue(task);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private class TransactionTask implements TransactionDispatcher.RejectableTask {
+
+        private final String url;
+        private final Transaction transaction;
+        private final Completion completion;
+        private final SentRecommends sentRecommends;
+        private final int attempt;
+        private final long queuedNanos;
+
+        public TransactionTask(String url, Transaction transaction, Completion completion,
+                               SentRecommends sentRecommends, int attempt) {
+            this.url = url;
+            this.transaction = transaction;
+            this.completion = completion;
+            this.sentRecommends = sentRecommends;
+            this.attempt = attempt;
+            this.queuedNanos = completion.metrics != null ? System.nanoTime() : 0;
+        }
+
+        @Override
+        public void run() {
+            final TransactionMetrics metrics = completion.metrics;
+            final Object o;
+            if (metrics != null) {
+                metrics.beginAttempt(attempt, queuedNanos);
+                try {
+                    o = process(url, transaction, attempt, completion);
+                } finally {
+                    metrics.endAttempt();
+                }
+            } else {
+                o = process(url, transaction, attempt, completion);
+            }
+            if (o == CANCELLED) {
+                if (sentRecommends != null) {
+                    // Cancelled before the others could see it was abandoned
+                    sentRecommends.finished(new Error("The transaction was cancelled",
+                            Error.ERROR_CANCELLED, null));
+                }
+                return;
+            }
+            if (o instanceof Retry) {
+                // The recommends stay in flight until the last attempt
+                scheduleRetry(new TransactionTask(url, transaction, completion, sentRecommends,
+                        attempt + 1), ((Retry) o).delayMillis);
+                return;
+            }
+            if (sentRecommends != null) {
+                sentRecommends.finished(o);
+            }
+            final long posted = metrics != null ? System.nanoTime() : 0;
+            completion.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    if (metrics != null) {
+                        metrics.recordSince(MetricsEvent.Phase.DISPATCH, posted, 0);
+                    }
+                    onPostExecute(o);
+                }
+            });
+        }
+
+        @Override
+        public void rejected(RejectedExecutionException e) {
+            final Error error = new Error("The network executor rejected the transaction",
+                    Error.ERROR_REJECTED, e);
+            if (sentRecommends != null) {
+                // Releases the joined recommends
+                sentRecommends.finished(error);
+            }
+            // Unregistered when the last part finished
+            completion.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    onPostExecute(error);
+                }
+            });
+        }
+
+        private void onPostExecute(Object o) {
+            // Invoked on the callback executor after the background computation finishes
+            if (o instanceof Error) {
+                completion.partFinished((Error) o);
+            } else {
+                ResponseParser parser = (ResponseParser) o;
+                // Forward results, unless the deadline expired or cancelled
+                if (!completion.isDone()) {
+                    TransactionMetrics metrics = completion.metrics;
+                    long start = metrics != null ? System.nanoTime() : 0;
+                    transaction.handleResults(parser.getResults());
+                    if (metrics != null) {
+                        metrics.recordSince(MetricsEvent.Phase.HANDLER, start,
+                                parser.getResults().size());
+                    }
+                }
+                completion.partFinished(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.HttpUrl;
+
+/**
+ * The state of the Session which goes into the transactions. It is immutable, the Session swaps
+ * it atomically on every change, so a transaction serialized from one context never sees a half
+ * applied update, eg. a new merchant with the server session of the old one. A new merchant
+ * starts without a server session, and a response only updates the session of the context it
+ * was sent from, see {@link #isBaseOf(String)}.
+ */
+final class SessionContext {
+
+    static final SessionContext DEFAULT = new SessionContext(null, null, null, null, null, true,
+            Session.SERVER, -1, null);
+
+    private final String merchantId;
+    private final String customerId;
+    private final String customerEmail;
+    private final String session;
+    private final String visitor;
+    private final boolean secure;
+    private final String host;
+    private final int port;
+    // The url of the merchant, null if the merchant is not set
+    private final String baseUrl;
+
+    private SessionContext(String merchantId, String customerId, String customerEmail,
+                           String session, String visitor, boolean secure, String host, int port,
+                           String baseUrl) {
+        this.merchantId = merchantId;
+        this.customerId = customerId;
+        this.customerEmail = customerEmail;
+        this.session = session;
+        this.visitor = visitor;
+        this.secure = secure;
+        this.host = host;
+        this.port = port;
+        this.baseUrl = baseUrl != null || merchantId == null || merchantId.isEmpty()
+                ? baseUrl : createBaseUrl();
+    }
+
+    private String createBaseUrl() {
+        HttpUrl.Builder builder = new HttpUrl.Builder()
+                .scheme(secure ? "https" : "http")
+                .host(host)
+                .addPathSegment("merchants")
+                .addPathSegment(merchantId);
+        if (port > 0) {
+            builder.port(port);
+        }
+        return builder.build().toString();
+    }
+
+    String getMerchantId() {
+        return merchantId;
+    }
+
+    String getCustomerId() {
+        return customerId;
+    }
+
+    String getCustomerEmail() {
+        return customerEmail;
+    }
+
+    String getSession() {
+        return session;
+    }
+
+    String getVisitor() {
+        return visitor;
+    }
+
+    boolean isSecure() {
+        return secure;
+    }
+
+    String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Returns true if the url was generated from a context with the same merchant and server,
+     * the server session of its response belongs to this context.
+     */
+    boolean isBaseOf(String url) {
+        return baseUrl != null && url.startsWith(baseUrl) && url.length() > baseUrl.length()
+                && url.charAt(baseUrl.length()) == '?';
+    }
+
+    // The base url is rebuilt when any of its parts changes
+
+    SessionContext withMerchantId(String merchantId) {
+        if (!merchantId.equals(this.merchantId)) {
+            // The server session of the old merchant
+            return new SessionContext(merchantId, customerId, customerEmail, null, null, secure,
+                    host, port, null);
+        }
+        return new SessionContext(merchantId, customerId, customerEmail, session, visitor, secure,
+                host, port, null);
+    }
+
+    SessionContext withCustomerId(String customerId) {
+        return new SessionContext(merchantId, customerId, customerEmail, session, visitor, secure,
+                host, port, baseUrl);
+    }
+
+    SessionContext withCustomerEmail(String customerEmail) {
+        return new SessionContext(merchantId, customerId, customerEmail, session, visitor, secure,
+                host, port, baseUrl);
+    }
+
+    /**
+     * Returns the context with the server session and visitor of a response.
+     */
+    SessionContext withSession(String session, String visitor) {
+        return new SessionContext(merchantId, customerId, customerEmail, session, visitor, secure,
+                host, port, baseUrl);
+    }
+
+    SessionContext withSecure(boolean secure) {
+        return new SessionContext(merchantId, customerId, customerEmail, session, visitor, secure,
+                host, port, null);
+    }
+
+    SessionContext withServer(String host, int port) {
+        return new SessionContext(merchantId, customerId, customerEmail, session, visitor, secure,
+                host, port, null);
+    }
+
+    @Override
+    public String toString() {
+        return "SessionContext{merchantId=" + merchantId + ", customerId=" + customerId
+                + ", session=" + session + ", visitor=" + visitor + ", baseUrl=" + baseUrl + "}";
+    }
+
+}
@@ -35,15 +35,28 @@ class StringUtil {
      * @return the constructed string
      */
     static String toStringWithDelimiter(Collection<?> l, String delimiter) {
-        String ret = "";
-        if (l != null && !l.isEmpty()) {
-            Iterator<?> i = l.iterator();
-            while (i.hasNext()) {
-                ret += i.next() + delimiter;
+        StringBuilder sb = new StringBuilder();
+        if (l != null) {
+            appendWithDelimiter(sb, l, delimiter);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends the elements of the input list separated with delimiter.
+     *
+     * @param sb        the builder to append to
+     * @param l         items to append
+     * @param delimiter the delimiter
+     */
+    static void appendWithDelimiter(StringBuilder sb, Collection<?> l, String delimiter) {
+        Iterator<?> i = l.iterator();
+        while (i.hasNext()) {
+            sb.append(i.next());
+            if (i.hasNext()) {
+                sb.append(delimiter);
             }
-            ret = ret.substring(0, ret.length() - delimiter.length());
         }
-        return ret;
     }
 
     /**
@@ -16,20 +16,16 @@
 
 package com.emarsys.predict;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
 import com.squareup.okhttp.HttpUrl;
-import org.apache.commons.collections4.map.LinkedMap;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * The transaction. Please send transaction instances only once.
@@ -52,6 +48,7 @@ public class Transaction {
 
     private final List<ErrorParameter> errors;
     private final Map<String, CompletionHandler> handlers;
+    private final Map<String, PredictFuture<RecommendationResult>> futures;
 
     /**
      * Creates a transaction.
@@ -68,6 +65,7 @@ public class Transaction {
         views = new ArrayList<ViewCommand>();
         errors = new ArrayList<ErrorParameter>();
         handlers = new HashMap<String, CompletionHandler>();
+        futures = new HashMap<String, PredictFuture<RecommendationResult>>();
     }
 
     /**
@@ -231,15 +229,121 @@ public class Transaction {
         handlers.put(key, completionHandler);
     }
 
-    void serialize(HttpUrl.Builder builder) {
+    /**
+     * Request recommendations, the result is passed to the returned future.
+     * The future is completed with the first result of the logic, eg. with the stale one in
+     * stale-while-revalidate mode. It is completed with null if the server has not returned the
+     * logic, and failed if the transaction has failed.
+     *
+     * @param request recommendation request instance.
+     * @return the future of the recommendation result
+     */
+    @NonNull
+    public PredictFuture<RecommendationResult> recommendAsync(
+            @NonNull RecommendationRequest request) {
+        final PredictFuture<RecommendationResult> future =
+                new PredictFuture<RecommendationResult>();
+        recommend(request, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                future.complete(recommendationResult);
+            }
+        });
+        futures.put(request.getLogic(), future);
+        return future;
+    }
+
+    /**
+     * Settles the futures of the recommends when the transaction is done.
+     *
+     * @param error the error of the transaction, or null if it has completed
+     */
+    void settleFutures(@Nullable Error error) {
+        for (PredictFuture<RecommendationResult> next : futures.values()) {
+            if (error != null) {
+                next.fail(error);
+            } else {
+                next.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Cancels the futures of the recommends when the transaction is cancelled.
+     */
+    void cancelFutures() {
+        for (PredictFuture<RecommendationResult> next : futures.values()) {
+            next.cancel(false);
+        }
+    }
+
+    private Object requestTag;
+
+    /**
+     * Sets the tag of the sent transaction, eg. the screen which requested it. All the pending
+     * transactions with the tag can be cancelled with {@link Session#cancelAll(Object)}.
+     * Not sent to the recommender, see {@link #tag(String)} for tracking.
+     *
+     * @param requestTag the tag or null
+     */
+    public void setRequestTag(@Nullable Object requestTag) {
+        this.requestTag = requestTag;
+    }
+
+    /**
+     * Returns the tag of the sent transaction.
+     *
+     * @return the tag or null
+     */
+    @Nullable
+    public Object getRequestTag() {
+        return requestTag;
+    }
+
+    /**
+     * Returns true if the transaction contains recommend commands.
+     */
+    boolean hasRecommends() {
+        return !recommends.isEmpty();
+    }
+
+    /**
+     * Returns true if the transaction contains other commands than recommends.
+     */
+    boolean hasTrackingCommands() {
+        return !availabilityZones.isEmpty() || !carts.isEmpty() || !categories.isEmpty()
+                || !keywords.isEmpty() || !purchases.isEmpty() || !searchTerms.isEmpty()
+                || !tags.isEmpty() || !views.isEmpty();
+    }
+
+    /**
+     * Removes the parameters of the recommend commands from a serialized transaction.
+     */
+    static String removeRecommends(String url) {
+        return HttpUrl.parse(url).newBuilder()
+                .removeAllQueryParameters("f")
+                .removeAllQueryParameters("pi")
+                .removeAllQueryParameters("ex")
+                .build().toString();
+    }
+
+    List<RecommendCommand> getRecommends() {
+        return recommends;
+    }
+
+    /**
+     * Serializes the transaction with the session context captured at send time, without the
+     * skipped recommend commands, eg. the ones served from the cache.
+     */
+    void serialize(QueryWriter writer, SessionContext context, String advertisingIdentifier,
+                   Set<RecommendCommand> skippedRecommends) {
         errors.clear();
 
         // Validate commands
         validateCommands();
 
         // Handle customerId
-        Session session = Session.getInstance();
-        String customerId = session.getCustomerId();
+        String customerId = context.getCustomerId();
         if (customerId != null) {
             if (customerId.isEmpty()) {
                 ErrorParameter e = new ErrorParameter("INVALId_ARG",
@@ -248,11 +352,11 @@ public class Transaction {
                 Log.d(TAG, e.toString());
                 errors.add(e);
             }
-            builder.addQueryParameter("ci", customerId);
+            writer.add("ci", customerId);
         }
 
         // Handle customerEmail
-        String customerEmail = session.getCustomerEmail();
+        String customerEmail = context.getCustomerEmail();
         if (customerEmail != null) {
             if (customerEmail.isEmpty()) {
                 ErrorParameter e = new ErrorParameter("INVALId_ARG",
@@ -262,127 +366,146 @@ public class Transaction {
                 errors.add(e);
             }
             String sha1 = StringUtil.sha1(customerEmail.trim().toLowerCase());
-            builder.addQueryParameter("eh", sha1.toLowerCase().substring(0, 16) + "1");
+            writer.beginValue("eh").append(sha1, 0, 16).append('1');
+            writer.endValue();
         }
 
         // Handle keywords
         if (!keywords.isEmpty()) {
             KeywordCommand cmd = keywords.get(keywords.size() - 1);
-            cmd.buildQuery(builder);
+            cmd.buildQuery(writer);
         }
 
         // Handle tags
         if (!tags.isEmpty()) {
             TagCommand cmd = tags.get(tags.size() - 1);
-            cmd.buildQuery(builder);
+            cmd.buildQuery(writer);
         }
 
         // Handle availabilityZones
         if (!availabilityZones.isEmpty()) {
             AvailabilityZoneCommand cmd = availabilityZones.get(availabilityZones.size() - 1);
-            cmd.buildQuery(builder);
+            cmd.buildQuery(writer);
         }
 
         // Handle carts
         if (!carts.isEmpty()) {
-            builder.addQueryParameter("cv", String.valueOf(1));
+            writer.add("cv", "1");
             CartCommand cmd = carts.get(carts.size() - 1);
-            cmd.buildQuery(builder);
+            cmd.buildQuery(writer);
         }
 
         // Handle categories
         if (!categories.isEmpty()) {
             CategoryCommand cmd = categories.get(categories.size() - 1);
-            cmd.buildQuery(builder);
+            cmd.buildQuery(writer);
         }
 
         // Handle purchases
         if (!purchases.isEmpty()) {
             PurchaseCommand cmd = purchases.get(purchases.size() - 1);
-            cmd.buildQuery(builder);
+            cmd.buildQuery(writer);
         }
 
-        // Handle recommends
-        List<String> features = new ArrayList<String>();
-        List<String> baselines = new ArrayList<String>();
-        List<Filter> filters = new ArrayList<Filter>();
+        // Handle recommends, the features are joined into one parameter
+        StringBuilder features = null;
+        boolean hasFilters = false;
         for (RecommendCommand next : recommends) {
-            RecommendationRequest req = next.getRecommendationRequest();
-            // Accumulate features
-            features.add(next.toString());
-            // Accumulate baselines
-            if (req.getBaseline() != null) {
-                String pi = req.getLogic() +
-                        StringUtil.toStringWithDelimiter(req.getBaseline(), "|");
-                baselines.add(pi);
+            if (skippedRecommends.contains(next)) {
+                continue;
             }
-            // Accumulate filters
-            filters.addAll(req.getFilters());
+            if (features == null) {
+                features = writer.beginValue("f");
+            } else {
+                features.append('|');
+            }
+            next.appendTo(features);
+            hasFilters |= !next.getRecommendationRequest().getFilters().isEmpty();
         }
-        if (!features.isEmpty()) {
-            // Append features
-            builder.addQueryParameter("f", StringUtil.toStringWithDelimiter(features, "|"));
+        if (features != null) {
+            writer.endValue();
         }
-        if (!baselines.isEmpty()) {
-            // Append baselines
-            for (String next : baselines) {
-                builder.addQueryParameter("pi", next);
+        // Append baselines
+        for (RecommendCommand next : recommends) {
+            RecommendationRequest req = next.getRecommendationRequest();
+            if (req.getBaseline() != null && !skippedRecommends.contains(next)) {
+                StringBuilder pi = writer.beginValue("pi").append(req.getLogic());
+                StringUtil.appendWithDelimiter(pi, req.getBaseline(), "|");
+                writer.endValue();
             }
         }
-        if (!filters.isEmpty()) {
-            // Append filters
-            List<Map<String, String>> l = new ArrayList<Map<String, String>>();
-            for (Filter next : filters) {
-                Map<String, String> m = new HashMap<String, String>();
-                m.put("f", next.catalogField);
-                m.put("r", next.rule);
-                m.put("v", StringUtil.toStringWithDelimiter(next.values, "|"));
-                m.put("n", (next instanceof ExcludeCommand) ? "false" : "true");
-                l.add(m);
+        if (hasFilters) {
+            // Append filters as a json array
+            StringBuilder ex = writer.beginValue("ex").append('[');
+            boolean first = true;
+            for (RecommendCommand next : recommends) {
+                if (skippedRecommends.contains(next)) {
+                    continue;
+                }
+                for (Filter filter : next.getRecommendationRequest().getFilters()) {
+                    if (!first) {
+                        ex.append(',');
+                    }
+                    first = false;
+                    ex.append("{\"f\":");
+                    QueryWriter.appendJsonString(ex, filter.catalogField);
+                    ex.append(",\"r\":");
+                    QueryWriter.appendJsonString(ex, filter.rule);
+                    ex.append(",\"v\":");
+                    QueryWriter.appendJsonString(ex, filter.values, '|');
+                    ex.append(",\"n\":")
+                            .append(filter instanceof ExcludeCommand ? "\"false\"" : "\"true\"")
+                            .append('}');
+                }
             }
-            Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-            builder.addQueryParameter("ex", gson.toJson(l));
+            ex.append(']');
+            writer.endValue();
         }
 
         // Handle searchTerms
         if (!searchTerms.isEmpty()) {
             SearchTermCommand cmd = searchTerms.get(searchTerms.size() - 1);
-            cmd.buildQuery(builder);
+            cmd.buildQuery(writer);
         }
 
         // Handle views
         if (!views.isEmpty()) {
             ViewCommand cmd = views.get(views.size() - 1);
-            cmd.buildQuery(builder);
+            cmd.buildQuery(writer);
         }
 
         // MAGIC
-        builder.addQueryParameter("cp", String.valueOf(1));
+        writer.add("cp", "1");
 
         // Handle advertiserId
-        String advertisingIdentifier = IdentifierManager.getInstance().getAdvertisingIdentifier();
         if (advertisingIdentifier != null) {
-            builder.addQueryParameter("vi", advertisingIdentifier);
+            writer.add("vi", advertisingIdentifier);
         }
 
         // Handle session
-        String sessionId = session.getSession();
+        String sessionId = context.getSession();
         if (sessionId != null) {
-            builder.addQueryParameter("s", sessionId);
+            writer.add("s", sessionId);
         }
 
-        // Append errors
+        // Append errors as a json array
         if (!errors.isEmpty()) {
-            List<Map<String, String>> l = new ArrayList<Map<String, String>>();
-            for (ErrorParameter next : errors) {
-                Map<String, String> m = new LinkedMap<String, String>();
-                m.put("t", next.type);
-                m.put("c", next.command);
-                m.put("m", next.message);
-                l.add(m);
+            StringBuilder error = writer.beginValue("error").append('[');
+            for (int i = 0; i < errors.size(); i++) {
+                ErrorParameter next = errors.get(i);
+                if (i > 0) {
+                    error.append(',');
+                }
+                error.append("{\"t\":");
+                QueryWriter.appendJsonString(error, next.type);
+                error.append(",\"c\":");
+                QueryWriter.appendJsonString(error, next.command);
+                error.append(",\"m\":");
+                QueryWriter.appendJsonString(error, next.message);
+                error.append('}');
             }
-            Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-            builder.addQueryParameter("error", gson.toJson(l));
+            error.append(']');
+            writer.endValue();
         }
     }
 
@@ -403,11 +526,11 @@ public class Transaction {
                     Error.ERROR_NON_UNIQUE_RECOMMENDATION_LOGIC, null);
         }
         for (RecommendCommand next : recommends) {
-            errors.addAll(next.validate());
+            next.validate(errors);
         }
     }
 
-    private void validateCommandArray(List<?> commands, String command) {
+    private void validateCommandArray(List<? extends Command> commands, String command) {
         // Validate multiple calls
         if (commands.size() > 1) {
             ErrorParameter e = new ErrorParameter("MULTIPLE_CALL", command,
@@ -415,8 +538,8 @@ public class Transaction {
             errors.add(e);
         }
         // Validate all commands in the array
-        for (Object next : commands) {
-            errors.addAll(((Command) next).validate());
+        for (Command next : commands) {
+            next.validate(errors);
         }
     }
 
@@ -426,7 +549,10 @@ public class Transaction {
             if (key != null) {
                 if (handlers.containsKey(key)) {
                     Log.d(TAG, "Found handler for result " + key);
-                    handlers.get(key).onCompletion(next);
+                    CompletionHandler handler = handlers.get(key);
+                    if (handler != null) {
+                        handler.onCompletion(next);
+                    }
                 } else {
                     Log.e(TAG, "Completion handler is missing for the feature " + key +
                             ", drop result");
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the tracking-only transactions until the time window elapses or the count threshold
+ * is reached. The flushed transactions are handed to a single sender at a time, so they are
+ * sent in the order they were collected.
+ */
+class TransactionBatcher {
+
+    /**
+     * A serialized transaction waiting in the batch.
+     */
+    static class Entry {
+
+        final String url;
+        final Transaction transaction;
+
+        Entry(String url, Transaction transaction) {
+            this.url = url;
+            this.transaction = transaction;
+        }
+
+    }
+
+    /**
+     * Sends the flushed transactions, see {@link #takeFlushed()}.
+     */
+    interface Sender {
+
+        void startSending(TransactionBatcher batcher);
+
+    }
+
+    private final List<Entry> collected = new ArrayList<Entry>();
+    private final Deque<Entry> flushed = new ArrayDeque<Entry>();
+    private boolean sending;
+    private ScheduledFuture<?> timer;
+
+    private final long windowMillis;
+    private final int maxTransactions;
+    private final ScheduledExecutorService scheduler;
+    private final Sender sender;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    TransactionBatcher(long windowMillis, int maxTransactions,
+                       ScheduledExecutorService scheduler, Sender sender) {
+        this.windowMillis = windowMillis;
+        this.maxTransactions = maxTransactions;
+        this.scheduler = scheduler;
+        this.sender = sender;
+    }
+
+    void add(String url, Transaction transaction) {
+        synchronized (this) {
+            collected.add(new Entry(url, transaction));
+            if (collected.size() < maxTransactions) {
+                if (timer == null) {
+                    // The window starts with the first transaction of the batch
+                    timer = scheduler.schedule(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    synchronized int size() {
+        return collected.size();
+    }
+
+    void flush() {
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            flushed.addAll(collected);
+            collected.clear();
+            if (sending || flushed.isEmpty()) {
+                return;
+            }
+            sending = true;
+        }
+        // Outside the lock, the sender may run on this thread, eg. on a synchronous executor
+        sender.startSending(this);
+    }
+
+    /**
+     * Invoked when the sender could not be started or continued, the flushed transactions are kept in order
+     * and a new sender is started by the next flush.
+     *
+     * @param unsent the taken transactions which were not sent, they are sent first
+     */
+    synchronized void sendingFailed(List<Entry> unsent) {
+        for (int i = unsent.size() - 1; i >= 0; i--) {
+            flushed.addFirst(unsent.get(i));
+        }
+        sending = false;
+    }
+
+    /**
+     * Returns the flushed transactions in order, or an empty list after which the sender has to
+     * stop, a new sender is started by the next flush.
+     */
+    synchronized List<Entry> takeFlushed() {
+        List<Entry> entries = new ArrayList<Entry>(flushed);
+        flushed.clear();
+        if (entries.isEmpty()) {
+            sending = false;
+        }
+        return entries;
+    }
+
+}
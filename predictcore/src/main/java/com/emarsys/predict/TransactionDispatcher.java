@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the transaction tasks on the network executor and limits the number of concurrently
+ * running tasks. Tasks over the limit wait in a queue in the order of their submission.
+ * A task rejected by the network executor is dropped, the rejection is passed to the task and
+ * not to the caller which happened to promote it.
+ */
+class TransactionDispatcher {
+
+    private static final String TAG = TransactionDispatcher.class.getSimpleName();
+
+    static final int DEFAULT_MAX_CONCURRENCY = 4;
+
+    /**
+     * A task which has to release its state if it is never run.
+     */
+    interface RejectableTask extends Runnable {
+
+        /**
+         * Invoked instead of {@link #run()} when the network executor rejects the task, without
+         * the lock of the dispatcher.
+         */
+        void rejected(RejectedExecutionException e);
+
+    }
+
+    private final Deque<Runnable> readyTasks = new ArrayDeque<Runnable>();
+    private int runningTasks;
+
+    private Executor networkExecutor;
+    private Executor callbackExecutor;
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private ScheduledExecutorService scheduler;
+
+    TransactionDispatcher(Executor callbackExecutor) {
+        this.networkExecutor = createDefaultNetworkExecutor();
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    static Executor createDefaultNetworkExecutor() {
+        // The dispatcher limits the concurrency, the pool only caches the threads
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "EmarsysPredictSDK #" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+    }
+
+    /**
+     * Returns the single thread scheduler of the delayed tasks, created on first use. The
+     * scheduled tasks must be short, the network calls belong to the network executor.
+     */
+    synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "EmarsysPredictSDK scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // Every session has its own, the idle ones do not keep a thread
+            executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+
+    synchronized void setNetworkExecutor(Executor networkExecutor) {
+        this.networkExecutor = networkExecutor;
+    }
+
+    synchronized void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    synchronized Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    void setMaxConcurrency(int maxConcurrency) {
+        List<Rejection> rejected;
+        synchronized (this) {
+            this.maxConcurrency = maxConcurrency;
+            rejected = promoteTasks();
+        }
+        reject(rejected);
+    }
+
+    synchronized int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    void enqueue(Runnable task) {
+        List<Rejection> rejected;
+        synchronized (this) {
+            readyTasks.add(task);
+            rejected = promoteTasks();
+        }
+        reject(rejected);
+    }
+
+    void deliver(Runnable callback) {
+        getCallbackExecutor().execute(callback);
+    }
+
+    private static class Rejection {
+
+        final Runnable task;
+        final RejectedExecutionException exception;
+
+        Rejection(Runnable task, RejectedExecutionException exception) {
+            this.task = task;
+            this.exception = exception;
+        }
+
+    }
+
+    // Returns the tasks rejected by the network executor
+    private List<Rejection> promoteTasks() {
+        List<Rejection> rejected = Collections.emptyList();
+        while (runningTasks < maxConcurrency && !readyTasks.isEmpty()) {
+            final Runnable task = readyTasks.poll();
+            runningTasks++;
+            try {
+                networkExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            finished();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                runningTasks--;
+                if (rejected.isEmpty()) {
+                    rejected = new ArrayList<Rejection>();
+                }
+                rejected.add(new Rejection(task, e));
+            }
+        }
+        return rejected;
+    }
+
+    private void finished() {
+        List<Rejection> rejected;
+        synchronized (this) {
+            runningTasks--;
+            rejected = promoteTasks();
+        }
+        reject(rejected);
+    }
+
+    private static void reject(List<Rejection> rejected) {
+        for (Rejection next : rejected) {
+            if (next.task instanceof RejectableTask) {
+                try {
+                    ((RejectableTask) next.task).rejected(next.exception);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to release the rejected task: " + e);
+                }
+            } else {
+                Log.w(TAG, "The network executor rejected a task: " + next.exception);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A sent transaction. Cancel it when its results are not needed anymore, eg. when the user
+ * leaves the screen: the http request is aborted, the response is not parsed and the handlers of
+ * the transaction are not called.
+ */
+public class TransactionHandle {
+
+    private final Object requestTag;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile boolean cancelled;
+
+    TransactionHandle(Object requestTag) {
+        this.requestTag = requestTag;
+    }
+
+    /**
+     * Cancels the transaction. The handlers of the transaction are not called afterwards.
+     * A recommend shared with an identical transaction of another caller is still received by
+     * the other one.
+     *
+     * @return false if the transaction has already completed, failed or been cancelled
+     */
+    public boolean cancel() {
+        if (!markDone()) {
+            return false;
+        }
+        cancelled = true;
+        onCancel();
+        return true;
+    }
+
+    /**
+     * Returns true if the transaction was cancelled.
+     *
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns true if the transaction has completed, failed or been cancelled.
+     *
+     * @return true if done
+     */
+    public boolean isDone() {
+        return done.get();
+    }
+
+    /**
+     * Returns the tag of the transaction.
+     *
+     * @return the tag or null
+     * @see Transaction#setRequestTag(Object)
+     */
+    @Nullable
+    public Object getRequestTag() {
+        return requestTag;
+    }
+
+    /**
+     * Marks the transaction done, returns false if it has already been done.
+     */
+    boolean markDone() {
+        return done.compareAndSet(false, true);
+    }
+
+    /**
+     * Invoked once when the transaction is cancelled.
+     */
+    void onCancel() {
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.Dns;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+/**
+ * Reports the phases of a transaction to the metrics listener. It exists only while a listener is
+ * set, the instrumented code checks it against null and does nothing else.
+ * <p>
+ * OkHttp has no events for the phases of a call, they are measured by hooks installed in the
+ * client. The hooks find the transaction of the network thread through {@link #current()}.
+ */
+final class TransactionMetrics {
+
+    private static final String TAG = TransactionMetrics.class.getSimpleName();
+
+    private static final AtomicLong IDS = new AtomicLong();
+
+    // The transaction of the http attempt running on the thread
+    private static final ThreadLocal<TransactionMetrics> CURRENT =
+            new ThreadLocal<TransactionMetrics>();
+
+    private final MetricsListener listener;
+    private final long id = IDS.incrementAndGet();
+    private final long startNanos = System.nanoTime();
+
+    // Accessed on the network thread of the current attempt only
+    private int attempt;
+    private long connectedNanos;
+
+    TransactionMetrics(MetricsListener listener) {
+        this.listener = listener;
+    }
+
+    static TransactionMetrics current() {
+        return CURRENT.get();
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Reports a finished phase which is not part of an http attempt.
+     */
+    void record(MetricsEvent.Phase phase, long durationNanos, long value) {
+        report(phase, 0, durationNanos, value);
+    }
+
+    void recordSince(MetricsEvent.Phase phase, long startNanos, long value) {
+        report(phase, 0, System.nanoTime() - startNanos, value);
+    }
+
+    /**
+     * Starts an http attempt on the current thread, after it waited in the queue since the
+     * given time.
+     */
+    void beginAttempt(int attempt, long queuedNanos) {
+        this.attempt = attempt;
+        connectedNanos = 0;
+        CURRENT.set(this);
+        recordAttempt(MetricsEvent.Phase.QUEUE, System.nanoTime() - queuedNanos, 0);
+    }
+
+    void endAttempt() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Reports a finished phase of the current http attempt.
+     */
+    void recordAttempt(MetricsEvent.Phase phase, long durationNanos, long value) {
+        report(phase, attempt, durationNanos, value);
+    }
+
+    private void report(MetricsEvent.Phase phase, int attempt, long durationNanos, long value) {
+        try {
+            listener.onEvent(new MetricsEvent(id, phase, attempt, System.nanoTime(),
+                    durationNanos, value));
+        } catch (RuntimeException e) {
+            // The transaction goes on
+            Log.w(TAG, "Metrics listener failed: " + e);
+        }
+    }
+
+    /**
+     * Times the host name resolution of the new connections.
+     */
+    static class TimedDns implements Dns {
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            TransactionMetrics metrics = current();
+            if (metrics == null) {
+                return SYSTEM.lookup(hostname);
+            }
+            long start = System.nanoTime();
+            List<InetAddress> addresses = SYSTEM.lookup(hostname);
+            metrics.recordAttempt(MetricsEvent.Phase.DNS, System.nanoTime() - start, 0);
+            return addresses;
+        }
+
+    }
+
+    /**
+     * Creates the sockets of the new connections, which time their connect.
+     */
+    static class TimedSocketFactory extends SocketFactory {
+
+        private final SocketFactory delegate = SocketFactory.getDefault();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return new Socket() {
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    TransactionMetrics metrics = current();
+                    if (metrics == null) {
+                        super.connect(endpoint, timeout);
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    super.connect(endpoint, timeout);
+                    metrics.connectedNanos = System.nanoTime();
+                    metrics.recordAttempt(MetricsEvent.Phase.CONNECT,
+                            metrics.connectedNanos - start, 0);
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException {
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+
+    }
+
+    /**
+     * Runs when the call has a connection: the TLS handshake of a new connection is finished,
+     * and times the request until the response headers.
+     */
+    static class TimingInterceptor implements Interceptor {
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            TransactionMetrics metrics = current();
+            if (metrics == null) {
+                return chain.proceed(chain.request());
+            }
+            long start = System.nanoTime();
+            if (metrics.connectedNanos != 0 && chain.connection().getHandshake() != null) {
+                // Opened by this attempt, the handshake followed the connect
+                metrics.recordAttempt(MetricsEvent.Phase.TLS, start - metrics.connectedNanos, 0);
+            }
+            metrics.connectedNanos = 0;
+            Response response = chain.proceed(chain.request());
+            metrics.recordAttempt(MetricsEvent.Phase.TIME_TO_FIRST_BYTE,
+                    System.nanoTime() - start, response.code());
+            return response;
+        }
+
+    }
+
+}
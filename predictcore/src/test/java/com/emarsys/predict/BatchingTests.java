@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchingTests {
+
+    private static final long WINDOW_MS = 500;
+
+    private MockWebServer server;
+
+    private static volatile boolean handlerCalled;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        for (int i = 0; i < 20; i++) {
+            server.enqueue(TestHelper.emptyResponse());
+        }
+        server.start();
+        handlerCalled = false;
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.disableBatching();
+        session.setRetryPolicy(null);
+        session.setMaxConcurrentTransactions(TransactionDispatcher.DEFAULT_MAX_CONCURRENCY);
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+        assertFalse("The handlers of batched transactions must not be called", handlerCalled);
+    }
+
+    private static Transaction view(String itemId) {
+        Transaction t = new Transaction();
+        t.view(itemId);
+        return t;
+    }
+
+    private static void sendView(String itemId) {
+        Session.getInstance().sendTransaction(view(itemId), new ErrorHandler() {
+            @Override
+            public void onError(@NonNull Error error) {
+                handlerCalled = true;
+            }
+        }, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                handlerCalled = true;
+            }
+        });
+    }
+
+    private void assertViews(int from, int to) throws InterruptedException {
+        for (int i = from; i < to; i++) {
+            RecordedRequest request = server.takeRequest(WINDOW_MS * 4, TimeUnit.MILLISECONDS);
+            assertNotNull(request);
+            assertTrue(request.getPath().contains("v=i:item_" + i + "&"));
+        }
+    }
+
+    @Test
+    public void testTimeWindow() throws InterruptedException {
+        Session.getInstance().enableBatching(WINDOW_MS, TimeUnit.MILLISECONDS, 100);
+        for (int i = 0; i < 3; i++) {
+            sendView("item_" + i);
+        }
+        // Nothing is sent before the end of the window
+        assertNull(server.takeRequest(WINDOW_MS / 2, TimeUnit.MILLISECONDS));
+        assertViews(0, 3);
+    }
+
+    @Test
+    public void testCountThreshold() throws InterruptedException {
+        Session.getInstance().enableBatching(1, TimeUnit.HOURS, 5);
+        for (int i = 0; i < 12; i++) {
+            sendView("item_" + i);
+        }
+        // Two full batches are sent in order, the rest waits for the window
+        assertViews(0, 10);
+        assertNull(server.takeRequest(WINDOW_MS, TimeUnit.MILLISECONDS));
+        Session.getInstance().flushBatch();
+        assertViews(10, 12);
+    }
+
+    @Test
+    public void testConnectionReuse() throws InterruptedException {
+        Session.getInstance().evictIdleConnections();
+        Session.getInstance().enableBatching(1, TimeUnit.HOURS, 100);
+        for (int i = 0; i < 10; i++) {
+            sendView("item_" + i);
+        }
+        Session.getInstance().flushBatch();
+        for (int i = 0; i < 10; i++) {
+            RecordedRequest request = server.takeRequest(WINDOW_MS * 4, TimeUnit.MILLISECONDS);
+            assertNotNull(request);
+            // The whole batch goes over one connection
+            assertEquals(i, request.getSequenceNumber());
+        }
+    }
+
+    @Test
+    public void testRetryKeepsOrder() throws InterruptedException {
+        server.setDispatcher(new Dispatcher() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                // The first attempt of the first transaction fails
+                return count.getAndIncrement() == 0
+                        ? new MockResponse().setResponseCode(503)
+                        : TestHelper.emptyResponse();
+            }
+        });
+        Session.getInstance().setRetryPolicy(new RetryPolicy(3, 100, 100,
+                TimeUnit.MILLISECONDS));
+        Session.getInstance().enableBatching(1, TimeUnit.HOURS, 100);
+        for (int i = 0; i < 3; i++) {
+            sendView("item_" + i);
+        }
+        Session.getInstance().flushBatch();
+        assertViews(0, 1);
+        // The retry is sent before the rest of the batch
+        assertViews(0, 3);
+    }
+
+    @Test
+    public void testRetryDoesNotBlock() throws InterruptedException {
+        server.setDispatcher(new Dispatcher() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return count.getAndIncrement() == 0
+                        ? new MockResponse().setResponseCode(503)
+                        : TestHelper.emptyResponse();
+            }
+        });
+        Session session = Session.getInstance();
+        session.setMaxConcurrentTransactions(1);
+        session.setRetryPolicy(new RetryPolicy(3, 1500, 1500, TimeUnit.MILLISECONDS));
+        session.enableBatching(1, TimeUnit.HOURS, 100);
+        sendView("item_0");
+        session.flushBatch();
+        assertViews(0, 1);
+
+        // Sent while the batch waits for the retry, on the only slot of the dispatcher
+        final CountDownLatch signal = new CountDownLatch(1);
+        Transaction t = new Transaction();
+        t.recommend(new RecommendationRequest("RELATED"), new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+            }
+        });
+        session.sendTransaction(t, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                signal.countDown();
+            }
+        });
+        assertTrue(signal.await(1000, TimeUnit.MILLISECONDS));
+        assertTrue(server.takeRequest().getPath().contains("f=f:RELATED"));
+        assertViews(0, 1);
+    }
+
+    @Test
+    public void testRecommendsAreNotBatched() throws InterruptedException {
+        Session.getInstance().enableBatching(1, TimeUnit.HOURS, 100);
+        sendView("item_0");
+
+        final CountDownLatch signal = new CountDownLatch(1);
+        Transaction t = new Transaction();
+        t.recommend(new RecommendationRequest("RELATED"), new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+            }
+        });
+        Session.getInstance().sendTransaction(t, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                signal.countDown();
+            }
+        });
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        RecordedRequest request = server.takeRequest();
+        assertTrue(request.getPath().contains("f=f:RELATED"));
+
+        // Disabling sends the collected transactions
+        Session.getInstance().disableBatching();
+        assertViews(0, 1);
+    }
+
+    /**
+     * The sender may send on the calling thread, eg. on a synchronous network executor, the
+     * other callers of add must not wait for it.
+     */
+    @Test
+    public void testSenderStartedOutsideTheLock() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger sent = new AtomicInteger();
+        try {
+            TransactionBatcher batcher = new TransactionBatcher(TimeUnit.HOURS.toMillis(1), 2,
+                    scheduler, new TransactionBatcher.Sender() {
+                @Override
+                public void startSending(TransactionBatcher batcher) {
+                    assertFalse(Thread.holdsLock(batcher));
+                    List<TransactionBatcher.Entry> entries;
+                    while (!(entries = batcher.takeFlushed()).isEmpty()) {
+                        sent.addAndGet(entries.size());
+                    }
+                }
+            });
+            batcher.add("http://localhost/1", view("item_1"));
+            batcher.add("http://localhost/2", view("item_2"));
+            assertEquals(2, sent.get());
+            batcher.add("http://localhost/3", view("item_3"));
+            batcher.flush();
+            assertEquals(3, sent.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CancellationTests {
+
+    private MockWebServer server;
+    // Injected into the responses
+    private volatile long delayMillis;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        delayMillis = 1000;
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                Thread.sleep(delayMillis);
+                try {
+                    String f = HttpUrl.parse("http://localhost" + request.getPath())
+                            .queryParameter("f");
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", "cdv=ABCDEF0123456789")
+                            .setBody(RecommendationCacheTests.recommendResponse(f));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        server.start();
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.setMaxConcurrentTransactions(TransactionDispatcher.DEFAULT_MAX_CONCURRENCY);
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+    }
+
+    /**
+     * Counts every handler invocation of the sent transactions.
+     */
+    private static class Calls implements ErrorHandler, CompletionHandler {
+
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void onError(@NonNull Error error) {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void onCompletion(@Nullable RecommendationResult result) {
+            count.incrementAndGet();
+            if (result == null) {
+                completed.countDown();
+            }
+        }
+
+    }
+
+    private static TransactionHandle send(@Nullable Object requestTag, Calls calls) {
+        Transaction t = new Transaction();
+        t.setRequestTag(requestTag);
+        t.recommend(new RecommendationRequest("RELATED"), calls);
+        return Session.getInstance().sendTransaction(t, calls, calls);
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException, IOException {
+        // A single network slot, the next transaction waits for the cancelled one
+        Session.getInstance().setMaxConcurrentTransactions(1);
+        long decoded = Session.getInstance().getDecodedResponseBytes();
+        Calls calls = new Calls();
+        TransactionHandle handle = send(null, calls);
+        Thread.sleep(200);
+        assertTrue(handle.cancel());
+        assertTrue(handle.isCancelled());
+        assertTrue(handle.isDone());
+        assertFalse(handle.cancel());
+
+        // Not blocked until the response of the aborted call
+        delayMillis = 0;
+        Calls next = new Calls();
+        send(null, next);
+        assertTrue(next.completed.await(500, TimeUnit.MILLISECONDS));
+
+        Thread.sleep(1500);
+        assertEquals(0, calls.count.get());
+        // Only the response of the second one was parsed
+        assertEquals(Session.getInstance().getDecodedResponseBytes() - decoded,
+                RecommendationCacheTests.recommendResponse("f:RELATED,l:5,o:0").length());
+    }
+
+    @Test
+    public void testCancelAfterCompletion() throws InterruptedException {
+        delayMillis = 0;
+        Calls calls = new Calls();
+        TransactionHandle handle = send(null, calls);
+        assertTrue(calls.completed.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertTrue(handle.isDone());
+        assertFalse(handle.cancel());
+        assertFalse(handle.isCancelled());
+    }
+
+    @Test
+    public void testCancelAllByTag() throws InterruptedException {
+        Object screen = new Object();
+        Calls tagged = new Calls();
+        TransactionHandle first = send(screen, tagged);
+        Transaction t = new Transaction();
+        t.setRequestTag(screen);
+        t.view("item_1");
+        TransactionHandle second = Session.getInstance().sendTransaction(t, tagged, tagged);
+        Calls untagged = new Calls();
+        Transaction other = new Transaction();
+        other.view("item_2");
+        TransactionHandle third = Session.getInstance().sendTransaction(other, untagged,
+                untagged);
+
+        Session.getInstance().cancelAll(screen);
+        assertTrue(first.isCancelled());
+        assertTrue(second.isCancelled());
+        assertFalse(third.isCancelled());
+        assertTrue(untagged.completed.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertEquals(0, tagged.count.get());
+        assertEquals(screen, first.getRequestTag());
+    }
+
+    @Test
+    public void testCancelledLeaderStillServesJoined() throws InterruptedException {
+        Calls leader = new Calls();
+        TransactionHandle handle = send(null, leader);
+        Calls joined = new Calls();
+        send(null, joined);
+        assertTrue(handle.cancel());
+        assertTrue(joined.completed.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        // The result and the completion
+        assertEquals(2, joined.count.get());
+        assertEquals(0, leader.count.get());
+        assertEquals(1, server.getRequestCount());
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTests {
+
+    private MockWebServer server;
+    // Injected into the responses
+    private volatile int status;
+    private volatile long latencyMillis;
+
+    private final List<CircuitBreaker.State> events = new ArrayList<CircuitBreaker.State>();
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        status = 200;
+        latencyMillis = 0;
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                Thread.sleep(latencyMillis);
+                if (status != 200) {
+                    return new MockResponse().setResponseCode(status);
+                }
+                return TestHelper.emptyResponse();
+            }
+        });
+        server.start();
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.setCircuitBreaker(null);
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+    }
+
+    private CircuitBreaker enableBreaker(long slowCallMillis, long openMillis) {
+        CircuitBreaker breaker = new CircuitBreaker(4, 0.5f, slowCallMillis, openMillis,
+                TimeUnit.MILLISECONDS);
+        breaker.setListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onStateChange(@NonNull CircuitBreaker.State from,
+                                      @NonNull CircuitBreaker.State to) {
+                synchronized (events) {
+                    events.add(to);
+                }
+            }
+        });
+        Session.getInstance().setCircuitBreaker(breaker);
+        return breaker;
+    }
+
+    private List<CircuitBreaker.State> events() {
+        synchronized (events) {
+            return new ArrayList<CircuitBreaker.State>(events);
+        }
+    }
+
+    /**
+     * Sends a tracking transaction and returns its error, or null if it succeeded.
+     */
+    private static Error send() throws InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(1);
+        final AtomicReference<Error> error = new AtomicReference<Error>();
+        Transaction t = new Transaction();
+        t.view("item_1");
+        Session.getInstance().sendTransaction(t, new ErrorHandler() {
+            @Override
+            public void onError(@NonNull Error e) {
+                error.set(e);
+                signal.countDown();
+            }
+        }, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult result) {
+                signal.countDown();
+            }
+        });
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        return error.get();
+    }
+
+    @Test
+    public void testOpensOnFailureRate() throws InterruptedException {
+        CircuitBreaker breaker = enableBreaker(10000, 10000);
+        assertNull(send());
+        assertNull(send());
+        status = 503;
+        assertNotNull(send());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertNotNull(send());
+        // 2 of 4 failed
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(Arrays.asList(CircuitBreaker.State.OPEN), events());
+
+        // Fails fast without a request
+        Error error = send();
+        assertNotNull(error);
+        assertEquals(Error.ERROR_CIRCUIT_OPEN, error.getErrorCode());
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void testClientErrorsDoNotOpen() throws InterruptedException {
+        CircuitBreaker breaker = enableBreaker(10000, 10000);
+        status = 404;
+        for (int i = 0; i < 6; i++) {
+            assertNotNull(send());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailureRate(), 0);
+    }
+
+    @Test
+    public void testOpensOnLatency() throws InterruptedException {
+        CircuitBreaker breaker = enableBreaker(100, 10000);
+        latencyMillis = 200;
+        for (int i = 0; i < 4; i++) {
+            assertNull(send());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(Error.ERROR_CIRCUIT_OPEN, send().getErrorCode());
+    }
+
+    @Test
+    public void testHalfOpenTrialCloses() throws InterruptedException {
+        CircuitBreaker breaker = enableBreaker(10000, 200);
+        status = 500;
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(send());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(300);
+        status = 200;
+        assertNull(send());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(Arrays.asList(CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN,
+                CircuitBreaker.State.CLOSED), events());
+        assertEquals(5, server.getRequestCount());
+    }
+
+    @Test
+    public void testHalfOpenTrialReopens() throws InterruptedException {
+        CircuitBreaker breaker = enableBreaker(10000, 200);
+        status = 500;
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(send());
+        }
+        Thread.sleep(300);
+        assertEquals(Error.ERROR_BAD_HTTP_STATUS, send().getErrorCode());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(Error.ERROR_CIRCUIT_OPEN, send().getErrorCode());
+        assertEquals(Arrays.asList(CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN,
+                CircuitBreaker.State.OPEN), events());
+    }
+
+    @Test
+    public void testSingleTrialInHalfOpen() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1, 1, 1, TimeUnit.NANOSECONDS);
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(true, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // Only the trial call is permitted
+        assertTrue(!breaker.tryAcquire());
+    }
+
+    @Test
+    public void testIgnoredTrial() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1, 1, 1, TimeUnit.NANOSECONDS);
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(true, 0);
+        assertTrue(breaker.tryAcquire());
+        // Cancelled by the caller, another trial is permitted
+        breaker.onIgnored();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(false, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingTests {
+
+    static final int CALLERS = 16;
+
+    private MockWebServer server;
+    // Holds the responses until all the callers sent their transactions
+    private CountDownLatch release;
+    private volatile int status;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        release = new CountDownLatch(1);
+        status = 200;
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                release.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS);
+                if (status != 200) {
+                    return new MockResponse().setResponseCode(status);
+                }
+                try {
+                    String f = HttpUrl.parse("http://localhost" + request.getPath())
+                            .queryParameter("f");
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", "cdv=ABCDEF0123456789")
+                            .setBody(RecommendationCacheTests.recommendResponse(f));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        server.start();
+        Session.getInstance().getIdentifierManager().setAdvertisingIdentifier("ABCDEF0123456789");
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        release.countDown();
+        Session session = Session.getInstance();
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+    }
+
+    /**
+     * Sends a transaction with the RELATED recommend from every caller at the same time.
+     */
+    private List<RecommendationResult> sendConcurrently(final AtomicInteger errors)
+            throws InterruptedException {
+        final List<RecommendationResult> results = new ArrayList<RecommendationResult>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch sent = new CountDownLatch(CALLERS);
+        final CountDownLatch finished = new CountDownLatch(CALLERS);
+        for (int i = 0; i < CALLERS; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Transaction t = new Transaction();
+                    t.recommend(new RecommendationRequest("RELATED"), new CompletionHandler() {
+                        @Override
+                        public void onCompletion(@Nullable RecommendationResult result) {
+                            synchronized (results) {
+                                results.add(result);
+                            }
+                        }
+                    });
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                    Session.getInstance().sendTransaction(t, new ErrorHandler() {
+                        @Override
+                        public void onError(@NonNull Error error) {
+                            errors.incrementAndGet();
+                            finished.countDown();
+                        }
+                    }, new CompletionHandler() {
+                        @Override
+                        public void onCompletion(@Nullable RecommendationResult result) {
+                            finished.countDown();
+                        }
+                    });
+                    sent.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(sent.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue(finished.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        synchronized (results) {
+            return new ArrayList<RecommendationResult>(results);
+        }
+    }
+
+    @Test
+    public void testIdenticalRecommendsCoalesced() throws InterruptedException {
+        AtomicInteger errors = new AtomicInteger();
+        List<RecommendationResult> results = sendConcurrently(errors);
+        assertEquals(0, errors.get());
+        assertEquals(CALLERS, results.size());
+        for (RecommendationResult next : results) {
+            // Every caller gets the result of the only request
+            assertTrue(next == results.get(0));
+            assertEquals(2, next.getProducts().size());
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testFailureForwardedToAllCallers() throws InterruptedException {
+        status = 404;
+        AtomicInteger errors = new AtomicInteger();
+        List<RecommendationResult> results = sendConcurrently(errors);
+        assertEquals(CALLERS, errors.get());
+        assertTrue(results.isEmpty());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testJoinedTransactionStillTracks() throws InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(2);
+        final AtomicInteger received = new AtomicInteger();
+        CompletionHandler handler = new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult result) {
+                received.incrementAndGet();
+            }
+        };
+        CompletionHandler completed = new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult result) {
+                signal.countDown();
+            }
+        };
+        Transaction first = new Transaction();
+        first.view("item_1");
+        first.recommend(new RecommendationRequest("RELATED"), handler);
+        Session.getInstance().sendTransaction(first, completed);
+        Transaction second = new Transaction();
+        second.view("item_1");
+        second.recommend(new RecommendationRequest("RELATED"), handler);
+        Session.getInstance().sendTransaction(second, completed);
+        release.countDown();
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertEquals(2, received.get());
+
+        // The view of the second one is sent without the recommend
+        assertEquals(2, server.getRequestCount());
+        String a = server.takeRequest().getPath();
+        String b = server.takeRequest().getPath();
+        assertTrue(a.contains("v=i:item_1") && b.contains("v=i:item_1"));
+        assertTrue(a.contains("f=f:RELATED") != b.contains("f=f:RELATED"));
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionTests {
+
+    private static final String TOPIC = "Könyvek > Tudományos-fantasztikus";
+
+    private MockWebServer server;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+    }
+
+    /**
+     * A response of a wide schema, with a non-ASCII topic.
+     */
+    private static String responseBody() throws IOException {
+        String json = TestHelper.generateResponse(1, 20, 30);
+        json = json.replace("FEATURE_0", "RELATED");
+        return json.replace("Books > Sci-fi", TOPIC);
+    }
+
+    private static MockResponse response(Buffer body, String encoding) {
+        MockResponse response = new MockResponse()
+                .addHeader("Set-Cookie", "cdv=ABCDEF0123456789")
+                .addHeader("Content-Type", "application/json")
+                .setBody(body);
+        if (encoding != null) {
+            response.addHeader("Content-Encoding", encoding);
+        }
+        return response;
+    }
+
+    private static Buffer gzip(String s) throws IOException {
+        Buffer buffer = new Buffer();
+        BufferedSink sink = Okio.buffer(new GzipSink(buffer));
+        sink.writeUtf8(s);
+        sink.close();
+        return buffer;
+    }
+
+    private static Buffer deflate(String s) throws IOException {
+        Buffer buffer = new Buffer();
+        DeflaterOutputStream out = new DeflaterOutputStream(buffer.outputStream(),
+                new Deflater(Deflater.BEST_COMPRESSION));
+        out.write(s.getBytes("UTF-8"));
+        out.close();
+        return buffer;
+    }
+
+    private static Object send() throws InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Transaction t = new Transaction();
+        t.recommend(new RecommendationRequest("RELATED"), new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                result.set(recommendationResult);
+            }
+        });
+        Session.getInstance().sendTransaction(t, new ErrorHandler() {
+            @Override
+            public void onError(@NonNull Error error) {
+                result.set(error);
+                signal.countDown();
+            }
+        }, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                signal.countDown();
+            }
+        });
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertNotNull(result.get());
+        return result.get();
+    }
+
+    @Test
+    public void testGzip() throws IOException, InterruptedException {
+        String body = responseBody();
+        Buffer compressed = gzip(body);
+        long compressedSize = compressed.size();
+        server.enqueue(response(compressed, "gzip"));
+
+        Session session = Session.getInstance();
+        long received = session.getReceivedResponseBytes();
+        long decoded = session.getDecodedResponseBytes();
+        RecommendationResult result = (RecommendationResult) send();
+        assertEquals(20, result.getProducts().size());
+        assertEquals(TOPIC, result.getTopic());
+
+        RecordedRequest request = server.takeRequest();
+        assertTrue(request.getHeader("Accept-Encoding").contains("gzip"));
+        assertEquals(compressedSize, session.getReceivedResponseBytes() - received);
+        assertEquals(body.getBytes("UTF-8").length, session.getDecodedResponseBytes() - decoded);
+    }
+
+    @Test
+    public void testUncompressedUtf8() throws IOException, InterruptedException {
+        server.enqueue(response(new Buffer().writeUtf8(responseBody()), null));
+        RecommendationResult result = (RecommendationResult) send();
+        assertEquals(TOPIC, result.getTopic());
+    }
+
+    @Test
+    public void testPluggableDecoder() throws IOException, InterruptedException {
+        Session.getInstance().addContentDecoder(new ContentDecoder() {
+            @NonNull
+            @Override
+            public String getEncoding() {
+                return "deflate";
+            }
+
+            @NonNull
+            @Override
+            public InputStream decode(@NonNull InputStream in, int bufferSize) {
+                return new InflaterInputStream(in);
+            }
+        });
+        server.enqueue(response(deflate(responseBody()), "deflate"));
+        RecommendationResult result = (RecommendationResult) send();
+        assertEquals(20, result.getProducts().size());
+        // The latest decoder is preferred
+        assertEquals("deflate, gzip", server.takeRequest().getHeader("Accept-Encoding"));
+    }
+
+    @Test
+    public void testUnsupportedEncoding() throws IOException, InterruptedException {
+        server.enqueue(response(new Buffer().writeUtf8(responseBody()), "x-unknown"));
+        Error error = (Error) send();
+        assertEquals(Error.ERROR_UNSUPPORTED_CONTENT_ENCODING, error.getErrorCode());
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeadlineTests {
+
+    private MockWebServer server;
+    // Injected into the responses
+    private volatile long headersDelayMillis;
+    private volatile long bodyDelayMillis;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        headersDelayMillis = 0;
+        bodyDelayMillis = 0;
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                Thread.sleep(headersDelayMillis);
+                try {
+                    String f = HttpUrl.parse("http://localhost" + request.getPath())
+                            .queryParameter("f");
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", "cdv=ABCDEF0123456789")
+                            .setBody(RecommendationCacheTests.recommendResponse(f))
+                            .setBodyDelay(bodyDelayMillis, TimeUnit.MILLISECONDS);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        server.start();
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.setMaxConcurrentTransactions(TransactionDispatcher.DEFAULT_MAX_CONCURRENCY);
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+    }
+
+    /**
+     * Sends a recommend with the timeout and returns its error, or null if it succeeded.
+     */
+    private static Error send(long timeoutMillis, final AtomicInteger results)
+            throws InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(1);
+        final AtomicReference<Error> error = new AtomicReference<Error>();
+        Transaction t = new Transaction();
+        t.recommend(new RecommendationRequest("RELATED"), new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult result) {
+                results.incrementAndGet();
+            }
+        });
+        Session.getInstance().sendTransaction(t, timeoutMillis, TimeUnit.MILLISECONDS,
+                new ErrorHandler() {
+                    @Override
+                    public void onError(@NonNull Error e) {
+                        error.set(e);
+                        signal.countDown();
+                    }
+                }, new CompletionHandler() {
+                    @Override
+                    public void onCompletion(@Nullable RecommendationResult result) {
+                        signal.countDown();
+                    }
+                });
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        return error.get();
+    }
+
+    @Test
+    public void testCompletesWithinDeadline() throws InterruptedException {
+        AtomicInteger results = new AtomicInteger();
+        assertNull(send(5000, results));
+        assertEquals(1, results.get());
+    }
+
+    @Test
+    public void testSlowServer() throws InterruptedException {
+        headersDelayMillis = 2000;
+        AtomicInteger results = new AtomicInteger();
+        long start = System.nanoTime();
+        Error error = send(300, results);
+        long elapsed = System.nanoTime() - start;
+        assertNotNull(error);
+        assertEquals(Error.ERROR_TIMEOUT, error.getErrorCode());
+        assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(1500));
+        Thread.sleep(2000);
+        // The late result is dropped
+        assertEquals(0, results.get());
+    }
+
+    @Test
+    public void testSlowBody() throws InterruptedException {
+        bodyDelayMillis = 2000;
+        AtomicInteger results = new AtomicInteger();
+        Error error = send(300, results);
+        assertNotNull(error);
+        assertEquals(Error.ERROR_TIMEOUT, error.getErrorCode());
+    }
+
+    @Test
+    public void testCallCancelled() throws InterruptedException {
+        // A single network slot, the next transaction waits for the timed out one
+        Session.getInstance().setMaxConcurrentTransactions(1);
+        headersDelayMillis = 3000;
+        assertNotNull(send(300, new AtomicInteger()));
+        headersDelayMillis = 0;
+        long start = System.nanoTime();
+        assertNull(send(5000, new AtomicInteger()));
+        // Not blocked until the response of the cancelled call
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+    }
+
+    @Test
+    public void testNotSent() throws InterruptedException {
+        // Without a merchant
+        Session session = new Session(new Storage() {
+            @Override
+            public void put(String key, Object value) {
+            }
+
+            @Override
+            public Object get(String key) {
+                return null;
+            }
+        });
+        final AtomicInteger errors = new AtomicInteger();
+        Transaction t = new Transaction();
+        t.recommend(new RecommendationRequest("RELATED"));
+        try {
+            session.sendTransaction(t, 100, TimeUnit.MILLISECONDS, new ErrorHandler() {
+                @Override
+                public void onError(@NonNull Error error) {
+                    errors.incrementAndGet();
+                }
+            }, null);
+            fail();
+        } catch (Error e) {
+            assertEquals(Error.ERROR_MISSING_MERCHANT_ID, e.getErrorCode());
+        }
+        // No timeout for the transaction which was not sent
+        Thread.sleep(300);
+        assertEquals(0, errors.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTimeout() {
+        Session.getInstance().sendTransaction(new Transaction(), 0, TimeUnit.MILLISECONDS, null,
+                null);
+    }
+
+}
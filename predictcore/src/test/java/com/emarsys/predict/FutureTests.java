@@ -0,0 +1,308 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FutureTests {
+
+    private MockWebServer server;
+    private ExecutorService background;
+    // Injected into the responses
+    private volatile int status;
+    private volatile long delayMillis;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        status = 200;
+        delayMillis = 0;
+        background = Executors.newSingleThreadExecutor();
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                Thread.sleep(delayMillis);
+                if (status != 200) {
+                    return new MockResponse().setResponseCode(status);
+                }
+                try {
+                    String f = HttpUrl.parse("http://localhost" + request.getPath())
+                            .queryParameter("f");
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", "cdv=ABCDEF0123456789")
+                            .setBody(RecommendationCacheTests.recommendResponse(f));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        server.start();
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        background.shutdown();
+        Session session = Session.getInstance();
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+    }
+
+    @Test
+    public void testRecommendFuture() throws Exception {
+        Transaction t = new Transaction();
+        PredictFuture<RecommendationResult> related = t.recommendAsync(
+                new RecommendationRequest("RELATED"));
+        PredictFuture<Void> sent = Session.getInstance().sendTransactionAsync(t);
+        final AtomicReference<String> thread = new AtomicReference<String>();
+        related.addCallback(new PredictFuture.Callback<RecommendationResult>() {
+            @Override
+            public void onSuccess(@Nullable RecommendationResult value) {
+                thread.set(Thread.currentThread().getName());
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable error) {
+            }
+        }, PredictFuture.DIRECT_EXECUTOR);
+
+        RecommendationResult result = related.get(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS);
+        assertEquals("RELATED", result.getFeatureId());
+        assertEquals(2, result.getProducts().size());
+        assertNull(sent.get(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        // Completed on the network executor, not on the callback executor
+        assertTrue(thread.get().startsWith("EmarsysPredictSDK #"));
+    }
+
+    @Test
+    public void testFanOutAndJoin() throws Exception {
+        Transaction t = new Transaction();
+        List<PredictFuture<RecommendationResult>> futures = Arrays.asList(
+                t.recommendAsync(new RecommendationRequest("RELATED")),
+                t.recommendAsync(new RecommendationRequest("ALSO_BOUGHT")),
+                t.recommendAsync(new RecommendationRequest("POPULAR")));
+        Session.getInstance().sendTransactionAsync(t);
+
+        PredictFuture<Integer> items = PredictFuture.allOf(futures).map(
+                new PredictFuture.Transformer<List<RecommendationResult>, Integer>() {
+                    @Override
+                    public Integer apply(@Nullable List<RecommendationResult> results) {
+                        int n = 0;
+                        for (RecommendationResult next : results) {
+                            n += next.getProducts().size();
+                        }
+                        return n;
+                    }
+                }, background);
+        assertEquals(Integer.valueOf(6), items.get(TestHelper.TIMEOUT_LARGE,
+                TimeUnit.SECONDS));
+        assertEquals("ALSO_BOUGHT", futures.get(1).get().getFeatureId());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testChain() throws Exception {
+        Transaction first = new Transaction();
+        PredictFuture<RecommendationResult> related = first.recommendAsync(
+                new RecommendationRequest("RELATED"));
+        Session.getInstance().sendTransactionAsync(first);
+        PredictFuture<RecommendationResult> next = related.then(
+                new PredictFuture.Transformer<RecommendationResult,
+                        PredictFuture<RecommendationResult>>() {
+                    @Override
+                    public PredictFuture<RecommendationResult> apply(
+                            @Nullable RecommendationResult value) {
+                        // Recommend for the first item of the previous result
+                        Transaction second = new Transaction();
+                        second.view(value.getProducts().get(0).getData().get("item").toString());
+                        PredictFuture<RecommendationResult> future = second.recommendAsync(
+                                new RecommendationRequest("ALSO_BOUGHT"));
+                        Session.getInstance().sendTransactionAsync(second);
+                        return future;
+                    }
+                }, background);
+        assertEquals("ALSO_BOUGHT", next.get(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS)
+                .getFeatureId());
+        assertEquals(2, server.getRequestCount());
+        server.takeRequest();
+        assertTrue(server.takeRequest().getPath().contains("v=i:RELATED_0"));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        status = 404;
+        Transaction t = new Transaction();
+        PredictFuture<RecommendationResult> related = t.recommendAsync(
+                new RecommendationRequest("RELATED"));
+        PredictFuture<Void> sent = Session.getInstance().sendTransactionAsync(t);
+        try {
+            sent.get(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(Error.ERROR_BAD_HTTP_STATUS, ((Error) e.getCause()).getErrorCode());
+        }
+        try {
+            related.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof Error);
+        }
+    }
+
+    @Test
+    public void testNotSent() throws Exception {
+        // Without a merchant
+        Session session = new Session(new Storage() {
+            @Override
+            public void put(String key, Object value) {
+            }
+
+            @Override
+            public Object get(String key) {
+                return null;
+            }
+        });
+        Transaction t = new Transaction();
+        PredictFuture<RecommendationResult> related = t.recommendAsync(
+                new RecommendationRequest("RELATED"));
+        PredictFuture<Void> sent = session.sendTransactionAsync(t, 100, TimeUnit.MILLISECONDS);
+        assertTrue(sent.isDone());
+        try {
+            sent.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(Error.ERROR_MISSING_MERCHANT_ID,
+                    ((Error) e.getCause()).getErrorCode());
+        }
+        assertTrue(related.isDone());
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        delayMillis = 2000;
+        Transaction t = new Transaction();
+        PredictFuture<RecommendationResult> related = t.recommendAsync(
+                new RecommendationRequest("RELATED"));
+        PredictFuture<Void> sent = Session.getInstance().sendTransactionAsync(t, 200,
+                TimeUnit.MILLISECONDS);
+        try {
+            related.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(Error.ERROR_TIMEOUT, ((Error) e.getCause()).getErrorCode());
+        }
+        try {
+            sent.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(Error.ERROR_TIMEOUT, ((Error) e.getCause()).getErrorCode());
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        delayMillis = 1000;
+        Transaction t = new Transaction();
+        PredictFuture<RecommendationResult> related = t.recommendAsync(
+                new RecommendationRequest("RELATED"));
+        PredictFuture<Void> sent = Session.getInstance().sendTransactionAsync(t);
+        assertTrue(sent.cancel(true));
+        assertTrue(sent.isCancelled());
+        // The transaction is cancelled with its recommends
+        assertTrue(related.isCancelled());
+        try {
+            related.get();
+            fail();
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testGetTimeout() throws Exception {
+        PredictFuture<String> future = new PredictFuture<String>();
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException e) {
+            // Expected
+        }
+        assertFalse(future.isDone());
+        assertTrue(future.complete("done"));
+        assertFalse(future.complete("again"));
+        assertEquals("done", future.get(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testAllOfEmptyAndFailed() throws Exception {
+        assertEquals(Collections.emptyList(), PredictFuture.allOf(
+                Collections.<PredictFuture<String>>emptyList()).get());
+        PredictFuture<String> a = new PredictFuture<String>();
+        PredictFuture<String> b = new PredictFuture<String>();
+        PredictFuture<List<String>> joined = PredictFuture.allOf(Arrays.asList(a, b));
+        Error error = new Error("failed", Error.ERROR_UNKNOWN, null);
+        b.fail(error);
+        try {
+            joined.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTests {
+
+    private MockWebServer server;
+    // Injected into the responses
+    private volatile int statusCode;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        statusCode = 200;
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (statusCode != 200) {
+                    return new MockResponse().setResponseCode(statusCode);
+                }
+                try {
+                    String f = HttpUrl.parse("http://localhost" + request.getPath())
+                            .queryParameter("f");
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", "cdv=ABCDEF0123456789")
+                            .setBody(RecommendationCacheTests.recommendResponse(f));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        server.start();
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.setMetricsListener(null);
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+    }
+
+    /**
+     * Collects the events until the end of a transaction.
+     */
+    private static class Events implements MetricsListener {
+
+        final List<MetricsEvent> events = new ArrayList<MetricsEvent>();
+        final CountDownLatch total = new CountDownLatch(1);
+
+        @Override
+        public synchronized void onEvent(@NonNull MetricsEvent event) {
+            events.add(event);
+            if (event.getPhase() == MetricsEvent.Phase.TOTAL) {
+                total.countDown();
+            }
+        }
+
+        synchronized MetricsEvent find(MetricsEvent.Phase phase) {
+            for (MetricsEvent next : events) {
+                if (next.getPhase() == phase) {
+                    return next;
+                }
+            }
+            return null;
+        }
+
+        synchronized List<MetricsEvent.Phase> phases() {
+            List<MetricsEvent.Phase> phases = new ArrayList<MetricsEvent.Phase>();
+            for (MetricsEvent next : events) {
+                phases.add(next.getPhase());
+            }
+            return phases;
+        }
+
+    }
+
+    private static Events send() throws InterruptedException {
+        Events events = new Events();
+        Session.getInstance().setMetricsListener(events);
+        Transaction t = new Transaction();
+        t.view("item_" + System.nanoTime());
+        t.recommend(new RecommendationRequest("RELATED"), new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult result) {
+            }
+        });
+        Session.getInstance().sendTransaction(t);
+        assertTrue(events.total.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        return events;
+    }
+
+    @Test
+    public void testPhases() throws InterruptedException {
+        Events events = send();
+        List<MetricsEvent.Phase> phases = events.phases();
+        // A new server, a new connection
+        assertTrue(phases.toString(), phases.contains(MetricsEvent.Phase.CONNECT));
+        assertFalse(phases.toString(), phases.contains(MetricsEvent.Phase.TLS));
+        phases.remove(MetricsEvent.Phase.DNS);
+        phases.remove(MetricsEvent.Phase.CONNECT);
+        List<MetricsEvent.Phase> expected = new ArrayList<MetricsEvent.Phase>();
+        expected.add(MetricsEvent.Phase.BUILD_URL);
+        expected.add(MetricsEvent.Phase.QUEUE);
+        expected.add(MetricsEvent.Phase.TIME_TO_FIRST_BYTE);
+        expected.add(MetricsEvent.Phase.DOWNLOAD);
+        expected.add(MetricsEvent.Phase.PARSE);
+        expected.add(MetricsEvent.Phase.DISPATCH);
+        expected.add(MetricsEvent.Phase.HANDLER);
+        expected.add(MetricsEvent.Phase.TOTAL);
+        assertEquals(expected, phases);
+
+        long id = events.events.get(0).getTransactionId();
+        long timestamp = 0;
+        for (MetricsEvent next : events.events) {
+            assertEquals(id, next.getTransactionId());
+            assertTrue(next.getDurationNanos() >= 0);
+            assertTrue(next.getTimestampNanos() >= timestamp);
+            timestamp = next.getTimestampNanos();
+        }
+        assertTrue(events.find(MetricsEvent.Phase.BUILD_URL).getValue() > 0);
+        assertEquals(0, events.find(MetricsEvent.Phase.BUILD_URL).getAttempt());
+        assertEquals(1, events.find(MetricsEvent.Phase.QUEUE).getAttempt());
+        assertEquals(200, events.find(MetricsEvent.Phase.TIME_TO_FIRST_BYTE).getValue());
+        assertTrue(events.find(MetricsEvent.Phase.DOWNLOAD).getValue() > 0);
+        assertEquals(1, events.find(MetricsEvent.Phase.PARSE).getValue());
+        assertEquals(1, events.find(MetricsEvent.Phase.HANDLER).getValue());
+        assertEquals(0, events.find(MetricsEvent.Phase.TOTAL).getValue());
+
+        // The connection is reused
+        events = send();
+        assertNull(events.find(MetricsEvent.Phase.CONNECT));
+        assertNotNull(events.find(MetricsEvent.Phase.TIME_TO_FIRST_BYTE));
+        assertTrue(id < events.events.get(0).getTransactionId());
+    }
+
+    @Test
+    public void testError() throws InterruptedException {
+        statusCode = 400;
+        Events events = send();
+        assertEquals(400, events.find(MetricsEvent.Phase.TIME_TO_FIRST_BYTE).getValue());
+        assertNull(events.find(MetricsEvent.Phase.PARSE));
+        assertEquals(Error.ERROR_BAD_HTTP_STATUS, events.find(MetricsEvent.Phase.TOTAL).getValue());
+    }
+
+    @Test
+    public void testFailingListener() throws InterruptedException {
+        final CountDownLatch completed = new CountDownLatch(1);
+        Session.getInstance().setMetricsListener(new MetricsListener() {
+            @Override
+            public void onEvent(@NonNull MetricsEvent event) {
+                throw new IllegalStateException("Failing listener");
+            }
+        });
+        Transaction t = new Transaction();
+        t.recommend(new RecommendationRequest("RELATED"), new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult result) {
+                completed.countDown();
+            }
+        });
+        Session.getInstance().sendTransaction(t);
+        assertTrue(completed.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testNoListener() throws InterruptedException {
+        Events removed = new Events();
+        Session.getInstance().setMetricsListener(removed);
+        Session.getInstance().setMetricsListener(null);
+        final CountDownLatch completed = new CountDownLatch(1);
+        Transaction t = new Transaction();
+        t.recommend(new RecommendationRequest("RELATED"), new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult result) {
+                completed.countDown();
+            }
+        });
+        Session.getInstance().sendTransaction(t);
+        assertTrue(completed.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertTrue(removed.events.isEmpty());
+    }
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (int i = 0; i < MetricsHistogram.BUCKETS; i++) {
+            long lower = MetricsHistogram.bucketLowerBound(i);
+            assertTrue(lower > previous);
+            assertEquals(i, MetricsHistogram.bucketIndex(lower));
+            if (lower > 0) {
+                assertEquals(i - 1, MetricsHistogram.bucketIndex(lower - 1));
+            }
+            previous = lower;
+        }
+        assertEquals(MetricsHistogram.BUCKETS - 1, MetricsHistogram.bucketIndex(Long.MAX_VALUE));
+        assertEquals(0, MetricsHistogram.bucketIndex(-1));
+    }
+
+    private static MetricsEvent event(MetricsEvent.Phase phase, long durationNanos, long value) {
+        return new MetricsEvent(1, phase, 1, System.nanoTime(), durationNanos, value);
+    }
+
+    @Test
+    public void testHistogram() {
+        MetricsHistogram histogram = new MetricsHistogram();
+        // 1..100 ms
+        for (int i = 1; i <= 100; i++) {
+            histogram.onEvent(event(MetricsEvent.Phase.TOTAL, i * 1000000L, 0));
+            histogram.onEvent(event(MetricsEvent.Phase.DOWNLOAD, 1000, 512));
+        }
+        MetricsHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount(MetricsEvent.Phase.TOTAL));
+        assertEquals(0, snapshot.getCount(MetricsEvent.Phase.PARSE));
+        assertEquals(0, snapshot.getPercentileNanos(MetricsEvent.Phase.PARSE, 50));
+        assertEquals(50500000L, snapshot.getMeanNanos(MetricsEvent.Phase.TOTAL));
+        assertEquals(100000000L, snapshot.getMaxNanos(MetricsEvent.Phase.TOTAL));
+        assertEquals(100 * 512, snapshot.getValueSum(MetricsEvent.Phase.DOWNLOAD));
+        long p50 = snapshot.getPercentileNanos(MetricsEvent.Phase.TOTAL, 50);
+        assertTrue(String.valueOf(p50), p50 >= 50000000L && p50 <= 50000000L * 1.125);
+        long p99 = snapshot.getPercentileNanos(MetricsEvent.Phase.TOTAL, 99);
+        assertTrue(String.valueOf(p99), p99 >= 99000000L && p99 <= 100000000L);
+        assertEquals(100000000L, snapshot.getPercentileNanos(MetricsEvent.Phase.TOTAL, 100));
+        assertTrue(snapshot.toString().contains("TOTAL: count=100"));
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount(MetricsEvent.Phase.TOTAL));
+        // The snapshot is a copy
+        assertEquals(100, snapshot.getCount(MetricsEvent.Phase.TOTAL));
+    }
+
+}
@@ -18,15 +18,11 @@ package com.emarsys.predict;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
-import org.junit.runner.RunWith;
-
-import android.support.test.runner.AndroidJUnit4;
 
 import java.util.ArrayList;
 
 import static org.junit.Assert.assertEquals;
 
-@RunWith(AndroidJUnit4.class)
 public class NullabilityTests {
 
     @BeforeClass
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineQueueTests {
+
+    private MockWebServer server;
+    private File directory;
+
+    private int readTimeout;
+
+    // Accepts the requests, but does not respond
+    private volatile boolean silent;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        directory = File.createTempFile("offline", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+
+        startServer(0);
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+        session.enableOfflineQueue(directory, 100, 1, TimeUnit.DAYS);
+        readTimeout = session.getClient().getReadTimeout();
+    }
+
+    private void startServer(int port) throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return silent ? new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE)
+                        : TestHelper.emptyResponse();
+            }
+        });
+        server.start(port);
+    }
+
+    /**
+     * The connections are refused until {@link #endOutage()}.
+     */
+    private void startOutage() throws IOException {
+        server.shutdown();
+        Session.getInstance().evictIdleConnections();
+    }
+
+    private void endOutage() throws IOException {
+        // On the same port, the queued transactions are sent to it
+        startServer(server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.disableOfflineQueue();
+        session.getClient().setReadTimeout(readTimeout, TimeUnit.MILLISECONDS);
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File next : files) {
+                assertTrue(next.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    private boolean send(Transaction t) throws InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(1);
+        final boolean[] failed = new boolean[1];
+        Session.getInstance().sendTransaction(t, new ErrorHandler() {
+            @Override
+            public void onError(@NonNull Error error) {
+                failed[0] = true;
+                signal.countDown();
+            }
+        }, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                signal.countDown();
+            }
+        });
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        return !failed[0];
+    }
+
+    /**
+     * Returns the paths of the received requests.
+     */
+    private List<String> takePaths() throws InterruptedException {
+        List<String> paths = new ArrayList<String>();
+        RecordedRequest request;
+        while ((request = server.takeRequest(200, TimeUnit.MILLISECONDS)) != null) {
+            if (request.getPath() != null) {
+                paths.add(request.getPath());
+            }
+        }
+        return paths;
+    }
+
+    private static Transaction view(String itemId) {
+        Transaction t = new Transaction();
+        t.view(itemId);
+        return t;
+    }
+
+    @Test
+    public void testReplayAfterOutage() throws IOException, InterruptedException {
+        startOutage();
+        assertFalse(send(view("item_1")));
+        Transaction t = view("item_2");
+        t.recommend(new RecommendationRequest("PERSONAL"));
+        assertFalse(send(t));
+        // Nothing to track, it is not queued
+        Transaction recommendOnly = new Transaction();
+        recommendOnly.recommend(new RecommendationRequest("PERSONAL"));
+        assertFalse(send(recommendOnly));
+        assertFalse(send(view("item_3")));
+        OfflineQueue queue = Session.getInstance().getOfflineQueue();
+        assertEquals(3, queue.size());
+
+        // Network is back
+        endOutage();
+        assertTrue(send(view("item_4")));
+        long deadline = System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(TestHelper.TIMEOUT_LARGE);
+        while (queue.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, queue.size());
+
+        // The queued transactions are sent in order, without the recommends
+        List<String> paths = takePaths();
+        assertEquals(4, paths.size());
+        assertTrue(paths.get(0).contains("v=i:item_4"));
+        assertTrue(paths.get(1).contains("v=i:item_1"));
+        assertTrue(paths.get(2).contains("v=i:item_2"));
+        assertFalse(paths.get(2).contains("f=f:PERSONAL"));
+        assertTrue(paths.get(3).contains("v=i:item_3"));
+    }
+
+    @Test
+    public void testFlush() throws IOException, InterruptedException {
+        startOutage();
+        assertFalse(send(view("item_1")));
+        OfflineQueue queue = Session.getInstance().getOfflineQueue();
+        assertEquals(1, queue.size());
+        endOutage();
+        Session.getInstance().flushOfflineQueue();
+        List<String> paths = takePaths();
+        assertEquals(1, paths.size());
+        assertTrue(paths.get(0).contains("v=i:item_1"));
+    }
+
+    /**
+     * The server may have tracked a transaction which timed out, it is not sent again.
+     */
+    @Test
+    public void testResponseTimeout() throws InterruptedException {
+        Session.getInstance().getClient().setReadTimeout(200, TimeUnit.MILLISECONDS);
+        silent = true;
+        assertFalse(send(view("item_1")));
+        assertEquals(0, Session.getInstance().getOfflineQueue().size());
+        List<String> paths = takePaths();
+        assertEquals(1, paths.size());
+        assertTrue(paths.get(0).contains("v=i:item_1"));
+    }
+
+    @Test
+    public void testPersistence() {
+        OfflineQueue queue = new OfflineQueue(directory, 100, TimeUnit.DAYS.toMillis(1));
+        queue.add("http://localhost/1");
+        queue.add("http://localhost/2");
+        queue.add("http://localhost/3");
+        queue.remove(queue.getEntries().get(1));
+
+        // Reload from the journal
+        List<OfflineQueue.Entry> entries =
+                new OfflineQueue(directory, 100, TimeUnit.DAYS.toMillis(1)).getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("http://localhost/1", entries.get(0).url);
+        assertEquals("http://localhost/3", entries.get(1).url);
+    }
+
+    @Test
+    public void testSizeLimit() {
+        OfflineQueue queue = new OfflineQueue(directory, 2, TimeUnit.DAYS.toMillis(1));
+        queue.add("http://localhost/1");
+        queue.add("http://localhost/2");
+        queue.add("http://localhost/3");
+        List<OfflineQueue.Entry> entries = queue.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("http://localhost/2", entries.get(0).url);
+        assertEquals("http://localhost/3", entries.get(1).url);
+    }
+
+    @Test
+    public void testAgeLimit() throws InterruptedException {
+        OfflineQueue queue = new OfflineQueue(directory, 100, 50);
+        queue.add("http://localhost/1");
+        Thread.sleep(100);
+        queue.add("http://localhost/2");
+        List<OfflineQueue.Entry> entries = queue.getEntries();
+        assertEquals(1, entries.size());
+        assertEquals("http://localhost/2", entries.get(0).url);
+    }
+
+    @Test
+    public void testCompaction() {
+        OfflineQueue queue = new OfflineQueue(directory, 100, TimeUnit.DAYS.toMillis(1));
+        for (int i = 0; i < 1000; i++) {
+            queue.add("http://localhost/" + i);
+            queue.remove(queue.getEntries().get(0));
+        }
+        queue.add("http://localhost/last");
+        File journal = new File(directory, OfflineQueue.JOURNAL_FILE);
+        assertTrue(journal.length() < 64 * 40);
+
+        List<OfflineQueue.Entry> entries =
+                new OfflineQueue(directory, 100, TimeUnit.DAYS.toMillis(1)).getEntries();
+        assertEquals(1, entries.size());
+        assertEquals("http://localhost/last", entries.get(0).url);
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PlatformTests {
+
+    @Test
+    public void testJvmCallbackExecutor() throws InterruptedException {
+        Platform platform = new Platform.JvmPlatform();
+        Executor executor = platform.defaultCallbackExecutor();
+        assertSame(executor, platform.defaultCallbackExecutor());
+
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        final CountDownLatch signal = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Both handlers are called on the same thread
+                    assertTrue(thread.compareAndSet(null, Thread.currentThread())
+                            || thread.get() == Thread.currentThread());
+                    signal.countDown();
+                }
+            });
+        }
+        assertTrue(signal.await(1, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), thread.get());
+        assertTrue(thread.get().isDaemon());
+    }
+
+    @Test
+    public void testJvmUserAgent() {
+        String userAgent = new Platform.JvmPlatform().userAgent();
+        assertTrue(userAgent, userAgent.startsWith("EmarsysPredictSDK|osversion:"));
+        assertTrue(userAgent, userAgent.endsWith("|platform:java"));
+    }
+
+    @Test
+    public void testJvmLogLevels() {
+        assertEquals(Level.FINE, Platform.JvmPlatform.toLevel(Log.DEBUG));
+        assertEquals(Level.INFO, Platform.JvmPlatform.toLevel(Log.INFO));
+        assertEquals(Level.WARNING, Platform.JvmPlatform.toLevel(Log.WARN));
+        assertEquals(Level.SEVERE, Platform.JvmPlatform.toLevel(Log.ERROR));
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PostTransportTests {
+
+    private static final int THRESHOLD = 2000;
+
+    private MockWebServer server;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        for (int i = 0; i < 5; i++) {
+            server.enqueue(TestHelper.emptyResponse());
+        }
+        server.start();
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.setPostThreshold(Session.DEFAULT_POST_THRESHOLD, false);
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+    }
+
+    private static Transaction cart(int size) {
+        Transaction t = new Transaction();
+        t.cart(TestHelper.createCart(size));
+        return t;
+    }
+
+    private static void send(Transaction t) throws InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(1);
+        final Error[] error = new Error[1];
+        Session.getInstance().sendTransaction(t, new ErrorHandler() {
+            @Override
+            public void onError(@NonNull Error e) {
+                error[0] = e;
+                signal.countDown();
+            }
+        }, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                signal.countDown();
+            }
+        });
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertNull(error[0]);
+    }
+
+    private static String queryOf(Transaction t) {
+        String url = Session.getInstance().generateGET(t);
+        return url.substring(url.indexOf('?') + 1);
+    }
+
+    @Test
+    public void testShortTransactionIsGet() throws InterruptedException {
+        Session.getInstance().setPostThreshold(THRESHOLD, false);
+        Transaction t = cart(2);
+        assertTrue(Session.getInstance().generateGET(t).length() < THRESHOLD);
+        send(t);
+        RecordedRequest request = server.takeRequest();
+        assertEquals("GET", request.getMethod());
+        assertTrue(request.getPath().contains("ca="));
+    }
+
+    @Test
+    public void testLongTransactionIsPost() throws InterruptedException {
+        Session.getInstance().setPostThreshold(THRESHOLD, false);
+        Transaction t = cart(200);
+        String query = queryOf(t);
+        assertTrue(query.length() > THRESHOLD);
+        send(t);
+        RecordedRequest request = server.takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("/merchants/1A74F439823D2CB4", request.getPath());
+        assertEquals("application/x-www-form-urlencoded",
+                request.getHeader("Content-Type"));
+        assertEquals(query, request.getBody().readUtf8());
+    }
+
+    @Test
+    public void testGzipBody() throws IOException, InterruptedException {
+        Session.getInstance().setPostThreshold(THRESHOLD, true);
+        Transaction t = cart(200);
+        String query = queryOf(t);
+        send(t);
+        RecordedRequest request = server.takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        assertTrue(request.getBodySize() < query.length());
+        Buffer body = request.getBody();
+        assertEquals(query, Okio.buffer(new GzipSource(body)).readUtf8());
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.google.gson.stream.JsonWriter;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RecommendationCacheTests {
+
+    private MockWebServer server;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                try {
+                    String f = HttpUrl.parse("http://localhost" + request.getPath())
+                            .queryParameter("f");
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", "cdv=ABCDEF0123456789")
+                            .setBody(recommendResponse(f));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        server.start();
+        // The visitor is part of the cache key, set it to the cookie of the responses
+        Session.getInstance().getIdentifierManager().setAdvertisingIdentifier("ABCDEF0123456789");
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+        session.enableRecommendationCache(1, TimeUnit.HOURS, 100, 1024 * 1024);
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.disableRecommendationCache();
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+    }
+
+    /**
+     * Returns two items for each requested feature.
+     */
+    static String recommendResponse(@Nullable String f) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("cohort").value("EMARSYS");
+        writer.name("visitor").value("0123456789ABCDEF");
+        writer.name("session").value("FEDCBA9876543210");
+        writer.name("features").beginObject();
+        if (f != null) {
+            for (String feature : f.split("\\|")) {
+                String logic = feature.substring("f:".length(), feature.indexOf(','));
+                writer.name(logic).beginObject();
+                writer.name("items").beginArray();
+                for (int i = 0; i < 2; i++) {
+                    writer.beginObject().name("id").value(logic + "_" + i).endObject();
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+        }
+        writer.endObject();
+        writer.name("schema").beginArray().value("item").value("title").endArray();
+        writer.name("products").beginObject();
+        if (f != null) {
+            for (String feature : f.split("\\|")) {
+                String logic = feature.substring("f:".length(), feature.indexOf(','));
+                for (int i = 0; i < 2; i++) {
+                    writer.name(logic + "_" + i).beginArray()
+                            .value(logic + "_" + i).value("Title " + i).endArray();
+                }
+            }
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.close();
+        return out.toString();
+    }
+
+    private static Transaction recommend(@Nullable String viewedItem,
+                                         final AtomicReference<RecommendationResult> result) {
+        Transaction t = new Transaction();
+        if (viewedItem != null) {
+            t.view(viewedItem);
+        }
+        t.recommend(new RecommendationRequest("RELATED"), new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                result.set(recommendationResult);
+            }
+        });
+        return t;
+    }
+
+    private static RecommendationResult send(@Nullable String viewedItem)
+            throws InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(1);
+        AtomicReference<RecommendationResult> result = new AtomicReference<RecommendationResult>();
+        Session.getInstance().sendTransaction(recommend(viewedItem, result),
+                new CompletionHandler() {
+                    @Override
+                    public void onCompletion(@Nullable RecommendationResult r) {
+                        signal.countDown();
+                    }
+                });
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertNotNull(result.get());
+        return result.get();
+    }
+
+    @Test
+    public void testHitStillTracks() throws InterruptedException {
+        RecommendationCache cache = Session.getInstance().getRecommendationCache();
+        RecommendationResult first = send("item_1");
+        assertTrue(server.takeRequest().getPath().contains("f=f:RELATED"));
+        assertEquals(2, first.getProducts().size());
+
+        RecommendationResult second = send("item_1");
+        assertSame(first, second);
+        // The view is sent without the recommend
+        String path = server.takeRequest().getPath();
+        assertTrue(path.contains("v=i:item_1"));
+        assertFalse(path.contains("f=f:RELATED"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testHitWithoutNetwork() throws InterruptedException {
+        RecommendationResult first = send(null);
+        assertNotNull(server.takeRequest(1, TimeUnit.SECONDS));
+        assertSame(first, send(null));
+        assertNull(server.takeRequest(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testContext() throws InterruptedException {
+        RecommendationResult first = send("item_1");
+        RecommendationResult second = send("item_2");
+        assertFalse(first == second);
+        assertEquals(2, server.getRequestCount());
+        assertEquals(2, Session.getInstance().getRecommendationCache().getMissCount());
+    }
+
+    @Test
+    public void testTimeToLive() throws InterruptedException {
+        Session.getInstance().enableRecommendationCache(100, TimeUnit.MILLISECONDS, 100, 1024);
+        RecommendationResult first = send(null);
+        Thread.sleep(200);
+        RecommendationResult second = send(null);
+        assertFalse(first == second);
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws InterruptedException {
+        Session.getInstance().enableRecommendationCache(0, TimeUnit.MILLISECONDS, 100, 1024 * 1024,
+                true);
+        RecommendationResult first = send(null);
+        assertFalse(first.isStale());
+
+        final List<RecommendationResult> results = new ArrayList<RecommendationResult>();
+        final CountDownLatch signal = new CountDownLatch(1);
+        Transaction t = new Transaction();
+        t.recommend(new RecommendationRequest("RELATED"), new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                synchronized (results) {
+                    results.add(recommendationResult);
+                }
+            }
+        });
+        Session.getInstance().sendTransaction(t, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                signal.countDown();
+            }
+        });
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        synchronized (results) {
+            // The last known result first, then the refreshed one
+            assertEquals(2, results.size());
+            assertTrue(results.get(0).isStale());
+            assertSame(first.getProducts(), results.get(0).getProducts());
+            assertFalse(results.get(1).isStale());
+        }
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, Session.getInstance().getRecommendationCache().getStaleHitCount());
+    }
+
+    private static RecommendationResult result(String featureId) {
+        RecommendationResult result = new RecommendationResult("EMARSYS", featureId, null);
+        ItemSchema schema = new ItemSchema(Collections.singletonList("item"));
+        result.addProduct(new RecommendedItem(result, schema,
+                new ProductRow(new Object[]{featureId})));
+        return result;
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        RecommendationCache cache = new RecommendationCache(TimeUnit.HOURS.toMillis(1), 2, 1024,
+                false);
+        cache.put("a", result("a"));
+        cache.put("b", result("b"));
+        assertNotNull(cache.get("a"));
+        cache.put("c", result("c"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testByteLimit() {
+        RecommendationResult a = result("a");
+        long size = RecommendationCache.estimateSize("a", a);
+        RecommendationCache cache = new RecommendationCache(TimeUnit.HOURS.toMillis(1), 100,
+                size * 2, false);
+        cache.put("a", a);
+        cache.put("b", result("b"));
+        assertEquals(size * 2, cache.byteSize());
+        cache.put("c", result("c"));
+        assertNull(cache.get("a"));
+        assertEquals(2, cache.size());
+        assertTrue(cache.byteSize() <= size * 2);
+    }
+
+    @Test
+    public void testCanonicalKey() {
+        RecommendationRequest a = new RecommendationRequest("RELATED");
+        a.excludeItemsWhereIs("category", "Books");
+        RecommendationRequest b = new RecommendationRequest("RELATED");
+        b.excludeItemsWhereIs("category", "Books");
+        assertEquals(RecommendationCache.createKey("ctx", a),
+                RecommendationCache.createKey("ctx", b));
+        b.setLimit(10);
+        assertFalse(RecommendationCache.createKey("ctx", a)
+                .equals(RecommendationCache.createKey("ctx", b)));
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.google.gson.stream.JsonReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecommendationDiskCacheTests {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("results", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File next : files) {
+                assertTrue(next.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    private static RecommendationResult result(String featureId) throws IOException {
+        RecommendationResult result = new RecommendationResult("EMARSYS", featureId,
+                "Books > Sci-fi");
+        ItemSchema schema = new ItemSchema(Arrays.asList("item", "price", "available", "brand",
+                "sizes"));
+        for (int i = 0; i < 3; i++) {
+            JsonReader reader = new JsonReader(new StringReader(
+                    "[\"item_" + i + "\", " + (i + 0.5) + ", true, null, [\"S\", \"M\"]]"));
+            result.addProduct(new RecommendedItem(result, schema, ProductRow.read(reader, 5)));
+        }
+        return result;
+    }
+
+    private static int fileCount(File directory) {
+        return directory.listFiles().length;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        RecommendationResult original = result("RELATED");
+        new RecommendationDiskCache(directory, 1024 * 1024, DAY).write("key", original);
+
+        // Read back like the preload of the RecommendationCache
+        List<RecommendationDiskCache.Entry> entries =
+                new RecommendationDiskCache(directory, 1024 * 1024, DAY).readAll();
+        assertEquals(1, entries.size());
+        RecommendationDiskCache.Entry entry = entries.get(0);
+        assertEquals("key", entry.key);
+        RecommendationResult result = entry.result;
+        assertEquals("EMARSYS", result.getCohort());
+        assertEquals("RELATED", result.getFeatureId());
+        assertEquals("Books > Sci-fi", result.getTopic());
+        assertEquals(original.getProducts().size(), result.getProducts().size());
+        for (int i = 0; i < result.getProducts().size(); i++) {
+            Map<String, Object> expected = original.getProducts().get(i).getData();
+            Map<String, Object> actual = result.getProducts().get(i).getData();
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testSurvivesRestart() throws IOException {
+        RecommendationCache cache = new RecommendationCache(DAY, 100, 1024 * 1024, false);
+        cache.setDiskCache(new RecommendationDiskCache(directory, 1024 * 1024, DAY));
+        cache.put("key", result("RELATED"));
+
+        // A new process does not read the disk on demand, only in the background
+        RecommendationCache restarted = new RecommendationCache(DAY, 100, 1024 * 1024, false);
+        restarted.setDiskCache(new RecommendationDiskCache(directory, 1024 * 1024, DAY));
+        assertNull(restarted.get("key"));
+        restarted.preload();
+        assertEquals(1, restarted.size());
+        RecommendationResult result = restarted.get("key");
+        assertNotNull(result);
+        assertEquals(3, result.getProducts().size());
+        assertEquals(1, restarted.getHitCount());
+    }
+
+    @Test
+    public void testStaleAfterRestart() throws IOException {
+        RecommendationCache cache = new RecommendationCache(0, 100, 1024 * 1024, true);
+        cache.setDiskCache(new RecommendationDiskCache(directory, 1024 * 1024, DAY));
+        cache.put("key", result("RELATED"));
+
+        RecommendationCache restarted = new RecommendationCache(0, 100, 1024 * 1024, true);
+        restarted.setDiskCache(new RecommendationDiskCache(directory, 1024 * 1024, DAY));
+        restarted.preload();
+        RecommendationResult result = restarted.get("key");
+        assertNotNull(result);
+        assertTrue(result.isStale());
+    }
+
+    @Test
+    public void testExpiry() throws IOException, InterruptedException {
+        new RecommendationDiskCache(directory, 1024 * 1024, DAY).write("key", result("RELATED"));
+        Thread.sleep(20);
+        assertTrue(new RecommendationDiskCache(directory, 1024 * 1024, 10).readAll().isEmpty());
+        assertEquals(0, fileCount(directory));
+    }
+
+    @Test
+    public void testSizeLimit() throws IOException {
+        RecommendationDiskCache disk = new RecommendationDiskCache(directory, 1024 * 1024, DAY);
+        disk.write("a", result("a"));
+        long size = directory.listFiles()[0].length();
+        disk.clear();
+
+        disk = new RecommendationDiskCache(directory, size * 2, DAY);
+        disk.write("a", result("a"));
+        disk.write("b", result("b"));
+        assertEquals(2, fileCount(directory));
+        disk.write("c", result("c"));
+        assertEquals(2, fileCount(directory));
+    }
+
+    @Test
+    public void testCorruptFile() throws IOException {
+        RecommendationDiskCache disk = new RecommendationDiskCache(directory, 1024 * 1024, DAY);
+        disk.write("key", result("RELATED"));
+        File file = directory.listFiles()[0];
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        assertTrue(disk.readAll().isEmpty());
+        assertFalse(file.exists());
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTests {
+
+    private MockWebServer server;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.setRetryPolicy(null);
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        server.shutdown();
+    }
+
+    /**
+     * Sends a tracking transaction and returns its error, or null if it succeeded.
+     */
+    private static Error send() throws InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(1);
+        final AtomicReference<Error> error = new AtomicReference<Error>();
+        Transaction t = new Transaction();
+        t.view("item_1");
+        Session.getInstance().sendTransaction(t, new ErrorHandler() {
+            @Override
+            public void onError(@NonNull Error e) {
+                error.set(e);
+                signal.countDown();
+            }
+        }, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult result) {
+                signal.countDown();
+            }
+        });
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        return error.get();
+    }
+
+    @Test
+    public void testTransientFailuresRetried() throws InterruptedException {
+        Session.getInstance().setRetryPolicy(new RetryPolicy(3, 10, 50, TimeUnit.MILLISECONDS));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(429));
+        server.enqueue(TestHelper.emptyResponse());
+        assertNull(send());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void testMaxAttempts() throws InterruptedException {
+        Session.getInstance().setRetryPolicy(new RetryPolicy(2, 10, 50, TimeUnit.MILLISECONDS));
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(TestHelper.emptyResponse());
+        Error error = send();
+        assertNotNull(error);
+        assertEquals(Error.ERROR_BAD_HTTP_STATUS, error.getErrorCode());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testPermanentFailureNotRetried() throws InterruptedException {
+        Session.getInstance().setRetryPolicy(new RetryPolicy(3, 10, 50, TimeUnit.MILLISECONDS));
+        server.enqueue(new MockResponse().setResponseCode(404));
+        server.enqueue(TestHelper.emptyResponse());
+        assertNotNull(send());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testRetryAfter() throws InterruptedException {
+        Session.getInstance().setRetryPolicy(new RetryPolicy(2, 0, 5, TimeUnit.SECONDS));
+        server.enqueue(new MockResponse().setResponseCode(503).addHeader("Retry-After", "1"));
+        server.enqueue(TestHelper.emptyResponse());
+        long start = System.nanoTime();
+        assertNull(send());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1000));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testRetryAfterOverMaxBackoff() throws InterruptedException {
+        Session.getInstance().setRetryPolicy(new RetryPolicy(2, 0, 5, TimeUnit.SECONDS));
+        server.enqueue(new MockResponse().setResponseCode(503).addHeader("Retry-After", "60"));
+        server.enqueue(TestHelper.emptyResponse());
+        assertNotNull(send());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testRetryBudget() throws InterruptedException {
+        RetryPolicy policy = new RetryPolicy(3, 10, 50, TimeUnit.MILLISECONDS, 1, 0.5f);
+        Session.getInstance().setRetryPolicy(policy);
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+        }
+        // The first transaction spends the only token
+        assertNotNull(send());
+        assertEquals(2, server.getRequestCount());
+        assertEquals(0, policy.getRetryTokens(), 0);
+        // Out of budget, not retried
+        assertNotNull(send());
+        assertEquals(3, server.getRequestCount());
+
+        // Successful transactions refill the budget
+        server.enqueue(TestHelper.emptyResponse());
+        server.enqueue(TestHelper.emptyResponse());
+        assertNull(send());
+        assertNull(send());
+        assertEquals(1, policy.getRetryTokens(), 0);
+    }
+
+    @Test
+    public void testClassification() {
+        assertTrue(RetryPolicy.isTransient(new SocketTimeoutException()));
+        assertTrue(RetryPolicy.isTransient(new ConnectException()));
+        assertFalse(RetryPolicy.isTransient(new UnknownHostException()));
+        assertTrue(RetryPolicy.isTransient(500));
+        assertTrue(RetryPolicy.isTransient(503));
+        assertTrue(RetryPolicy.isTransient(429));
+        assertTrue(RetryPolicy.isTransient(408));
+        assertFalse(RetryPolicy.isTransient(404));
+        assertFalse(RetryPolicy.isTransient(400));
+    }
+
+    @Test
+    public void testBackoffWithJitter() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, TimeUnit.MILLISECONDS);
+        boolean jittered = false;
+        for (int i = 0; i < 100; i++) {
+            long first = policy.backoffMillis(1);
+            assertTrue(first >= 0 && first <= 100);
+            long third = policy.backoffMillis(3);
+            assertTrue(third >= 0 && third <= 400);
+            long capped = policy.backoffMillis(20);
+            assertTrue(capped >= 0 && capped <= 1000);
+            jittered |= first != policy.backoffMillis(1);
+        }
+        assertTrue(jittered);
+    }
+
+    @Test
+    public void testParseRetryAfter() {
+        long now = 784111777000L;
+        assertEquals(120000, RetryPolicy.parseRetryAfter("120", now));
+        assertEquals(0, RetryPolicy.parseRetryAfter("0", now));
+        assertEquals(3000, RetryPolicy.parseRetryAfter("Sun, 06 Nov 1994 08:49:40 GMT", now));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("-5", now));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon", now));
+        assertEquals(-1, RetryPolicy.parseRetryAfter(null, now));
+    }
+
+}
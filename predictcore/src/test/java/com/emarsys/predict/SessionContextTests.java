@@ -0,0 +1,243 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.HttpUrl;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionContextTests {
+
+    private static final String[] MERCHANTS = {"1A74F439823D2CB4", "2B85F54A934E3DC5"};
+    private static final int SETTERS = 4;
+    private static final int SENDERS = 4;
+    private static final int ITERATIONS = 20000;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @After
+    public void restore() {
+        Session session = Session.getInstance();
+        session.setMerchantId(MERCHANTS[0]);
+        session.setCustomerId(null);
+        session.setCustomerEmail(null);
+        session.setSecure(true);
+        session.setServer(Session.SERVER, -1);
+    }
+
+    @Test
+    public void testSnapshot() {
+        Session session = Session.getInstance();
+        session.setMerchantId(MERCHANTS[0]);
+        session.setCustomerId("customer");
+        SessionContext snapshot = session.getContext();
+        session.setMerchantId(MERCHANTS[1]);
+        session.setSecure(false);
+        session.setCustomerId(null);
+
+        // Not affected by the later changes
+        assertEquals(MERCHANTS[0], snapshot.getMerchantId());
+        assertEquals("customer", snapshot.getCustomerId());
+        assertTrue(snapshot.isSecure());
+        assertEquals("https://" + Session.SERVER + "/merchants/" + MERCHANTS[0],
+                snapshot.getBaseUrl());
+        assertEquals("http://" + Session.SERVER + "/merchants/" + MERCHANTS[1],
+                session.getContext().getBaseUrl());
+        assertNull(session.getCustomerId());
+    }
+
+    @Test
+    public void testMissingMerchant() {
+        assertNull(SessionContext.DEFAULT.getBaseUrl());
+        assertNull(SessionContext.DEFAULT.withMerchantId("").getBaseUrl());
+        try {
+            Session.getInstance().generateGET(new Transaction(), SessionContext.DEFAULT,
+                    Collections.<RecommendCommand>emptySet());
+            fail("The merchantId is required");
+        } catch (Error e) {
+            assertEquals(Error.ERROR_MISSING_MERCHANT_ID, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testMerchantChangeClearsSession() {
+        Session session = Session.getInstance();
+        session.setMerchantId(MERCHANTS[0]);
+        Transaction t = new Transaction();
+        t.view("item_1");
+        session.setSession(session.generateGET(t), "session", "visitor");
+        assertEquals("session", session.getSession());
+
+        // Not cleared by the same merchant
+        session.setMerchantId(MERCHANTS[0]);
+        assertEquals("session", session.getSession());
+        assertEquals("visitor", session.getVisitor());
+
+        session.setMerchantId(MERCHANTS[1]);
+        assertNull(session.getSession());
+        assertNull(session.getVisitor());
+    }
+
+    @Test
+    public void testSessionOfAnotherMerchant() {
+        Session session = Session.getInstance();
+        session.setMerchantId(MERCHANTS[0]);
+        Transaction t = new Transaction();
+        t.view("item_1");
+        String url = session.generateGET(t);
+
+        // The response arrives after the merchant changed
+        session.setMerchantId(MERCHANTS[1]);
+        session.setSession(url, "session", "visitor");
+        assertNull(session.getSession());
+        assertNull(session.getVisitor());
+
+        // Nor from another server
+        session.setSecure(false);
+        session.setSession(session.generateGET(t).replace("http:", "https:"), "session", null);
+        assertNull(session.getSession());
+
+        session.setSession(session.generateGET(t), "session", "visitor");
+        assertEquals("session", session.getSession());
+        assertEquals("visitor", session.getVisitor());
+    }
+
+    /**
+     * Concurrent setters of different fields, none of the updates may be lost, and the senders
+     * never see a torn context, eg. the url of one merchant with the scheme of another.
+     */
+    @Test
+    public void testConcurrentSendersAndSetters() throws InterruptedException {
+        final Session session = Session.getInstance();
+        session.setMerchantId(MERCHANTS[0]);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean setting = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> setters = new ArrayList<Thread>();
+        List<Thread> senders = new ArrayList<Thread>();
+
+        for (int i = 0; i < SETTERS; i++) {
+            final int field = i;
+            setters.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int j = 0; j < ITERATIONS; j++) {
+                        switch (field) {
+                            case 0:
+                                session.setMerchantId(MERCHANTS[j % 2]);
+                                break;
+                            case 1:
+                                session.setSecure(j % 2 == 0);
+                                break;
+                            case 2:
+                                session.setCustomerId("customer" + j);
+                                break;
+                            default:
+                                session.setCustomerEmail("customer" + j + "@example.com");
+                                break;
+                        }
+                    }
+                }
+            }));
+        }
+        for (int i = 0; i < SENDERS; i++) {
+            senders.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    try {
+                        while (setting.get()) {
+                            checkSnapshot(session.getContext());
+                            Transaction t = new Transaction();
+                            t.view("item_1");
+                            checkUrl(HttpUrl.parse(session.generateGET(t)));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        for (Thread next : setters) {
+            next.start();
+        }
+        for (Thread next : senders) {
+            next.start();
+        }
+        start.countDown();
+        for (Thread next : setters) {
+            next.join();
+        }
+        setting.set(false);
+        for (Thread next : senders) {
+            next.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // The last write of every setter
+        int last = ITERATIONS - 1;
+        assertEquals(MERCHANTS[last % 2], session.getMerchantId());
+        assertEquals(last % 2 == 0, session.isSecure());
+        assertEquals("customer" + last, session.getCustomerId());
+        assertEquals("customer" + last + "@example.com", session.getCustomerEmail());
+        checkSnapshot(session.getContext());
+    }
+
+    private static void checkSnapshot(SessionContext context) {
+        HttpUrl url = HttpUrl.parse(context.getBaseUrl());
+        assertEquals(context.isSecure() ? "https" : "http", url.scheme());
+        assertEquals(context.getMerchantId(), url.pathSegments().get(1));
+    }
+
+    private static void checkUrl(HttpUrl url) {
+        String merchant = url.pathSegments().get(1);
+        assertTrue(merchant, MERCHANTS[0].equals(merchant) || MERCHANTS[1].equals(merchant));
+        String customerId = url.queryParameter("ci");
+        assertTrue(customerId, customerId == null || customerId.startsWith("customer"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.CookieHandler;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionInstanceTests {
+
+    private static final String MERCHANT_A = "1A74F439823D2CB4";
+    private static final String MERCHANT_B = "2B85F54A934E3DC5";
+
+    private MockWebServer serverA;
+    private MockWebServer serverB;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServers() throws IOException {
+        serverA = new MockWebServer();
+        serverA.start();
+        serverB = new MockWebServer();
+        serverB.start();
+    }
+
+    @After
+    public void shutdownServers() throws IOException {
+        serverA.shutdown();
+        serverB.shutdown();
+    }
+
+    private static class MapStorage implements Storage {
+
+        final Map<String, Object> map = new HashMap<String, Object>();
+
+        @Override
+        public void put(String key, Object value) {
+            map.put(key, value);
+        }
+
+        @Override
+        public Object get(String key) {
+            return map.get(key);
+        }
+
+    }
+
+    private static Session createSession(Storage storage, String merchantId,
+                                         MockWebServer server) {
+        Session session = new Session(storage);
+        session.setMerchantId(merchantId);
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+        return session;
+    }
+
+    private static void send(Session session) throws InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(1);
+        final AtomicReference<Error> error = new AtomicReference<Error>();
+        Transaction t = new Transaction();
+        t.view("item_1");
+        session.sendTransaction(t, new ErrorHandler() {
+            @Override
+            public void onError(@NonNull Error e) {
+                // Asserted on the test thread
+                error.set(e);
+                signal.countDown();
+            }
+        }, new CompletionHandler() {
+            @Override
+            public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                signal.countDown();
+            }
+        });
+        assertTrue(signal.await(TestHelper.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertNull(error.get());
+    }
+
+    @Test
+    public void testIndependentSessions() throws InterruptedException {
+        CookieHandler defaultHandler = CookieHandler.getDefault();
+        MapStorage storageA = new MapStorage();
+        MapStorage storageB = new MapStorage();
+        Session sessionA = createSession(storageA, MERCHANT_A, serverA);
+        Session sessionB = createSession(storageB, MERCHANT_B, serverB);
+        assertNotSame(sessionA, Session.getInstance());
+        assertSame(defaultHandler, CookieHandler.getDefault());
+
+        serverA.enqueue(TestHelper.emptyResponse()
+                .setHeader("Set-Cookie", "cdv=AAAAAAAAAAAAAAAA"));
+        serverA.enqueue(TestHelper.emptyResponse()
+                .setHeader("Set-Cookie", "cdv=AAAAAAAAAAAAAAAA"));
+        serverB.enqueue(TestHelper.emptyResponse()
+                .setHeader("Set-Cookie", "cdv=BBBBBBBBBBBBBBBB"));
+        send(sessionA);
+        send(sessionB);
+        send(sessionA);
+
+        // The identifiers are kept in the storage of their session
+        assertEquals("AAAAAAAAAAAAAAAA", storageA.get("advertisingId"));
+        assertEquals("BBBBBBBBBBBBBBBB", storageB.get("advertisingId"));
+        assertEquals("AAAAAAAAAAAAAAAA", sessionA.getAdvertisingId());
+        assertEquals(MERCHANT_A, sessionA.getMerchantId());
+        assertEquals(MERCHANT_B, sessionB.getMerchantId());
+
+        RecordedRequest firstA = serverA.takeRequest();
+        RecordedRequest firstB = serverB.takeRequest();
+        RecordedRequest secondA = serverA.takeRequest();
+        assertNull(firstA.getHeader("Cookie"));
+        // Not the cookie of the other session on the same host
+        assertNull(firstB.getHeader("Cookie"));
+        assertNull(HttpUrl.parse("http://localhost" + firstB.getPath()).queryParameter("vi"));
+        assertEquals("cdv=AAAAAAAAAAAAAAAA", secondA.getHeader("Cookie"));
+        assertEquals("AAAAAAAAAAAAAAAA",
+                HttpUrl.parse("http://localhost" + secondA.getPath()).queryParameter("vi"));
+        assertEquals("/merchants/" + MERCHANT_B,
+                HttpUrl.parse("http://localhost" + firstB.getPath()).encodedPath());
+    }
+
+    @Test
+    public void testIndependentSettings() {
+        Session sessionA = new Session(new MapStorage());
+        Session sessionB = new Session(new MapStorage());
+        sessionA.setMaxConcurrentTransactions(1);
+        sessionA.setCustomerId("customer");
+        assertEquals(1, sessionA.getMaxConcurrentTransactions());
+        assertEquals(TransactionDispatcher.DEFAULT_MAX_CONCURRENCY,
+                sessionB.getMaxConcurrentTransactions());
+        assertNull(sessionB.getCustomerId());
+        assertNull(Session.getInstance().getCustomerId());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullStorage() {
+        new Session(null);
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import com.google.gson.stream.JsonWriter;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The test data shared by the JVM tests and the instrumentation tests.
+ */
+public class TestHelper {
+
+    // In seconds
+    static final long TIMEOUT_LARGE = 8;
+
+    static final String EMPTY_RESPONSE = "{\"cohort\":\"EMARSYS\",\"visitor\":\"V1\","
+            + "\"session\":\"S1\",\"features\":{}}";
+
+    static MockResponse emptyResponse() {
+        return new MockResponse()
+                .addHeader("Set-Cookie", "cdv=ABCDEF0123456789")
+                .setBody(EMPTY_RESPONSE);
+    }
+
+    static List<CartItem> createCart(int size) {
+        List<CartItem> items = new ArrayList<CartItem>();
+        for (int i = 0; i < size; i++) {
+            items.add(new CartItem("item_" + i, 10.5f + i, 1 + i % 3));
+        }
+        return items;
+    }
+
+    /**
+     * Generates a response with the given number of features, products per feature and schema
+     * fields.
+     */
+    static String generateResponse(int features, int productsPerFeature, int schemaWidth)
+            throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("cohort").value("EMARSYS");
+        writer.name("visitor").value("0123456789ABCDEF");
+        writer.name("session").value("FEDCBA9876543210");
+        writer.name("features").beginObject();
+        for (int f = 0; f < features; f++) {
+            writer.name("FEATURE_" + f).beginObject();
+            writer.name("topicLabel").value("Books > Sci-fi");
+            writer.name("items").beginArray();
+            for (int p = 0; p < productsPerFeature; p++) {
+                writer.beginObject();
+                writer.name("id").value("item_" + (f * productsPerFeature + p));
+                writer.name("spans").beginArray().endArray();
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.name("schema").beginArray();
+        for (int i = 0; i < schemaWidth; i++) {
+            writer.value("field_" + i);
+        }
+        writer.endArray();
+        writer.name("products").beginObject();
+        for (int p = 0; p < features * productsPerFeature; p++) {
+            writer.name("item_" + p).beginArray();
+            for (int i = 0; i < schemaWidth; i++) {
+                switch (i % 5) {
+                    case 0:
+                        writer.value("http://www.example.com/products/" + p + "/" + i);
+                        break;
+                    case 1:
+                        writer.value(p * 1.5 + i);
+                        break;
+                    case 2:
+                        writer.value(i % 3 == 0);
+                        break;
+                    case 3:
+                        writer.beginArray().value("tag_" + p).value(i).endArray();
+                        break;
+                    default:
+                        writer.value("Lorem ipsum dolor sit amet " + p);
+                        break;
+                }
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.close();
+        return out.toString();
+    }
+
+}
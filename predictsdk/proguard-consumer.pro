@@ -0,0 +1,4 @@
+# The core finds the Android platform by its name
+-keep class com.emarsys.predict.AndroidPlatform {
+    <init>();
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ServerSocketFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ConnectionReuseBenchmark {
+
+    private static final String TAG = ConnectionReuseBenchmark.class.getSimpleName();
+
+    static final int TRANSACTIONS = 20;
+
+    private MockWebServer server;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        server.setServerSocketFactory(new ServerSocketFactory() {
+            @Override
+            public ServerSocket createServerSocket() throws IOException {
+                return new ServerSocket() {
+                    @Override
+                    public Socket accept() throws IOException {
+                        // Without it the delayed ACKs dominate the timing on the loopback
+                        Socket socket = new Socket();
+                        implAccept(socket);
+                        socket.setTcpNoDelay(true);
+                        return socket;
+                    }
+                };
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port, int backlog, InetAddress address)
+                    throws IOException {
+                throw new UnsupportedOperationException();
+            }
+        });
+        server.start();
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        session.evictIdleConnections();
+        server.shutdown();
+    }
+
+    private long sendTransactions(int count, boolean evict) throws InterruptedException {
+        Session session = Session.getInstance();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (evict) {
+                // Forces a new connection for every transaction, like a new client would
+                session.evictIdleConnections();
+            }
+            final CountDownLatch signal = new CountDownLatch(1);
+            Transaction t = new Transaction();
+            t.view("item_" + i);
+            session.sendTransaction(t, new ErrorHandler() {
+                @Override
+                public void onError(@NonNull Error error) {
+                    Log.e(TAG, error.toString());
+                }
+            }, new CompletionHandler() {
+                @Override
+                public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                    signal.countDown();
+                }
+            });
+            assertTrue(signal.await(FunctionalTests.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void testConnectionReuse() throws InterruptedException {
+        for (int i = 0; i < 2 * TRANSACTIONS + 1; i++) {
+            server.enqueue(TestHelper.emptyResponse());
+        }
+
+        // Warm up
+        sendTransactions(1, true);
+        server.takeRequest();
+
+        long pooled = sendTransactions(TRANSACTIONS, false);
+        // Every transaction must reuse the connection of the warm up transaction
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            RecordedRequest request = server.takeRequest();
+            assertEquals(i + 1, request.getSequenceNumber());
+        }
+
+        long unpooled = sendTransactions(TRANSACTIONS, true);
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            RecordedRequest request = server.takeRequest();
+            assertEquals(0, request.getSequenceNumber());
+        }
+
+        Log.i(TAG, "Pooled: " + TimeUnit.NANOSECONDS.toMicros(pooled) / TRANSACTIONS
+                + " us/transaction, new connection each time: "
+                + TimeUnit.NANOSECONDS.toMicros(unpooled) / TRANSACTIONS + " us/transaction");
+    }
+
+}
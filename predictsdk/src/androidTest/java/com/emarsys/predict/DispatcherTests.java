@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.runner.AndroidJUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class DispatcherTests {
+
+    private static final long RESPONSE_DELAY_MS = 200;
+
+    private MockWebServer server;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                int n = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), n));
+                }
+                Thread.sleep(RESPONSE_DELAY_MS);
+                inFlight.decrementAndGet();
+                return TestHelper.emptyResponse();
+            }
+        });
+        server.start();
+        Session session = Session.getInstance();
+        session.setMerchantId("1A74F439823D2CB4");
+        session.setSecure(false);
+        session.setServer(server.getHostName(), server.getPort());
+    }
+
+    @After
+    public void shutdownServer() throws IOException {
+        Session session = Session.getInstance();
+        session.setServer(Session.SERVER, -1);
+        session.setSecure(true);
+        session.setMaxConcurrentTransactions(TransactionDispatcher.DEFAULT_MAX_CONCURRENCY);
+        session.setNetworkExecutor(TransactionDispatcher.createDefaultNetworkExecutor());
+        session.disableBatching();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        session.setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                handler.post(command);
+            }
+        });
+        server.shutdown();
+    }
+
+    private void sendTransactions(int count) throws InterruptedException {
+        final CountDownLatch signal = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            Transaction t = new Transaction();
+            t.view("item_" + i);
+            Session.getInstance().sendTransaction(t, new CompletionHandler() {
+                @Override
+                public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+                    signal.countDown();
+                }
+            });
+        }
+        assertTrue(signal.await(FunctionalTests.TIMEOUT_LARGE, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testParallelTransactions() throws InterruptedException {
+        Session.getInstance().setMaxConcurrentTransactions(4);
+        sendTransactions(4);
+        assertEquals(4, maxInFlight.get());
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws InterruptedException {
+        Session.getInstance().setMaxConcurrentTransactions(2);
+        sendTransactions(6);
+        assertEquals(2, maxInFlight.get());
+        assertEquals(6, server.getRequestCount());
+    }
+
+    @Test
+    public void testCallbackExecutor() throws InterruptedException {
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        Session.getInstance().setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                threads.add(Thread.currentThread().getName());
+                command.run();
+            }
+        });
+        sendTransactions(3);
+        assertEquals(3, threads.size());
+        for (String next : threads) {
+            // Delivered directly from the network threads, without a main thread hop
+            assertTrue(next.startsWith("EmarsysPredictSDK"));
+        }
+    }
+
+    private static final Executor REJECTING_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            throw new RejectedExecutionException("Shut down");
+        }
+    };
+
+    /**
+     * Records the outcome of a transaction.
+     */
+    private static class Outcome implements ErrorHandler, CompletionHandler {
+
+        final AtomicReference<Error> error = new AtomicReference<Error>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onError(@NonNull Error error) {
+            this.error.set(error);
+            done.countDown();
+        }
+
+        @Override
+        public void onCompletion(@Nullable RecommendationResult recommendationResult) {
+            if (recommendationResult == null) {
+                done.countDown();
+            }
+        }
+
+    }
+
+    @Test
+    public void testRejectedTransaction() throws InterruptedException {
+        Session session = Session.getInstance();
+        session.setNetworkExecutor(REJECTING_EXECUTOR);
+        Object tag = new Object();
+        Transaction t = new Transaction();
+        t.setRequestTag(tag);
+        t.view("item_1");
+        Outcome outcome = new Outcome();
+        // Not thrown to the sender
+        TransactionHandle handle = session.sendTransaction(t, outcome, outcome);
+        assertTrue(outcome.done.await(FunctionalTests.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertEquals(Error.ERROR_REJECTED, outcome.error.get().getErrorCode());
+        assertTrue(handle.isDone());
+        assertFalse(handle.cancel());
+    }
+
+    @Test
+    public void testRejectedRecommend() throws InterruptedException {
+        Session session = Session.getInstance();
+        session.setNetworkExecutor(REJECTING_EXECUTOR);
+        Transaction t = new Transaction();
+        t.recommend(new RecommendationRequest("RELATED"), null);
+        Outcome rejected = new Outcome();
+        session.sendTransaction(t, rejected, rejected);
+        assertTrue(rejected.done.await(FunctionalTests.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertEquals(Error.ERROR_REJECTED, rejected.error.get().getErrorCode());
+
+        // The identical recommend is sent, it does not join the rejected one
+        session.setNetworkExecutor(TransactionDispatcher.createDefaultNetworkExecutor());
+        Transaction next = new Transaction();
+        next.recommend(new RecommendationRequest("RELATED"), null);
+        Outcome sent = new Outcome();
+        session.sendTransaction(next, sent, sent);
+        assertTrue(sent.done.await(FunctionalTests.TIMEOUT_LARGE, TimeUnit.SECONDS));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testRejectedBatch() throws InterruptedException {
+        Session session = Session.getInstance();
+        session.enableBatching(1, TimeUnit.MINUTES, 1);
+        session.setNetworkExecutor(REJECTING_EXECUTOR);
+        Transaction first = new Transaction();
+        first.view("item_1");
+        session.sendTransaction(first);
+
+        // The next flush sends both, in order
+        session.setNetworkExecutor(TransactionDispatcher.createDefaultNetworkExecutor());
+        Transaction second = new Transaction();
+        second.view("item_2");
+        session.sendTransaction(second);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(
+                FunctionalTests.TIMEOUT_LARGE);
+        while (server.getRequestCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, server.getRequestCount());
+    }
+
+}
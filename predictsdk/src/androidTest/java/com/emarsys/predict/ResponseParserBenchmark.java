@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class ResponseParserBenchmark {
+
+    private static final String TAG = ResponseParserBenchmark.class.getSimpleName();
+
+    static final int ITERATIONS = 100;
+
+    /**
+     * The former implementation: reads a generic json tree and maps it to the results.
+     */
+    @SuppressWarnings("unchecked")
+    static List<RecommendationResult> parseTree(String json) {
+        Map<String, Object> root = (Map<String, Object>) new Gson().fromJson(
+                new StringReader(json), Map.class);
+        String cohort = (String) root.get("cohort");
+        Map<String, Object> features = (Map<String, Object>) root.get("features");
+        List<String> schema = (List<String>) root.get("schema");
+        Map<String, Object> products = (Map<String, Object>) root.get("products");
+        ItemSchema itemSchema = new ItemSchema(schema);
+        List<RecommendationResult> results = new ArrayList<RecommendationResult>();
+        for (String key : features.keySet()) {
+            Map<String, Object> obj = (Map<String, Object>) features.get(key);
+            RecommendationResult result = new RecommendationResult(cohort, key,
+                    (String) obj.get("topicLabel"));
+            for (Map<String, Object> itemIndex : (List<Map<String, Object>>) obj.get("items")) {
+                List<Object> itemValues = (List<Object>) products.get(itemIndex.get("id"));
+                result.addProduct(new RecommendedItem(result, itemSchema,
+                        new ProductRow(itemValues.toArray())));
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    static List<RecommendationResult> parseStream(String json) throws IOException {
+        return new ResponseParser(new StringReader(json)).getResults();
+    }
+
+    /**
+     * Reads a few fields of every item, like a typical list of recommendations.
+     */
+    static int readFields(List<RecommendationResult> results) {
+        int n = 0;
+        for (RecommendationResult result : results) {
+            for (RecommendedItem item : result.getProducts()) {
+                Map<String, Object> data = item.getData();
+                for (int i = 0; i < 4; i++) {
+                    if (data.get("field_" + i) != null) {
+                        n++;
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void testSameResults() throws IOException {
+        String json = TestHelper.generateResponse(3, 10, 8);
+        List<RecommendationResult> expected = parseTree(json);
+        List<RecommendationResult> actual = parseStream(json);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            RecommendationResult e = expected.get(i);
+            RecommendationResult a = actual.get(i);
+            assertEquals(e.getFeatureId(), a.getFeatureId());
+            assertEquals(e.getCohort(), a.getCohort());
+            assertEquals(e.getTopic(), a.getTopic());
+            assertEquals(e.getProducts().size(), a.getProducts().size());
+            for (int j = 0; j < e.getProducts().size(); j++) {
+                assertEquals(e.getProducts().get(j).getData(), a.getProducts().get(j).getData());
+            }
+        }
+    }
+
+    private void benchmark(int features, int productsPerFeature, int schemaWidth)
+            throws IOException {
+        String json = TestHelper.generateResponse(features, productsPerFeature, schemaWidth);
+        // Warm up
+        for (int i = 0; i < ITERATIONS; i++) {
+            readFields(parseTree(json));
+            readFields(parseStream(json));
+        }
+
+        AllocationCounter.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            readFields(parseTree(json));
+        }
+        long treeTime = (System.nanoTime() - start) / ITERATIONS;
+        long treeBytes = AllocationCounter.stop() / ITERATIONS;
+
+        AllocationCounter.start();
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            readFields(parseStream(json));
+        }
+        long streamTime = (System.nanoTime() - start) / ITERATIONS;
+        long streamBytes = AllocationCounter.stop() / ITERATIONS;
+
+        Log.i(TAG, features + " features x " + productsPerFeature + " products x "
+                + schemaWidth + " fields, payload " + json.length() + " chars, 4 fields read: "
+                + "tree " + treeTime / 1000 + " us, " + treeBytes + " bytes allocated; "
+                + "stream " + streamTime / 1000 + " us, " + streamBytes + " bytes allocated");
+    }
+
+    @Test
+    public void testBenchmarkSmall() throws IOException {
+        benchmark(1, 5, 10);
+    }
+
+    @Test
+    public void testBenchmarkWideSchema() throws IOException {
+        benchmark(4, 50, 40);
+    }
+
+    @Test
+    public void testBenchmarkManyFeatures() throws IOException {
+        benchmark(20, 20, 20);
+    }
+
+}
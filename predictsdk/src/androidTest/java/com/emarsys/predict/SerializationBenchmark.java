@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.emarsys.predict;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import com.squareup.okhttp.HttpUrl;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class SerializationBenchmark {
+
+    private static final String TAG = SerializationBenchmark.class.getSimpleName();
+
+    static final int ITERATIONS = 200;
+
+    @BeforeClass
+    public static void setUp() {
+        // Init the Session
+        SessionHelper.reset();
+        Session.getInstance().setMerchantId("1A74F439823D2CB4");
+    }
+
+    static List<RecommendationRequest> createRequests(int count, int filters) {
+        List<RecommendationRequest> requests = new ArrayList<RecommendationRequest>();
+        for (int r = 0; r < count; r++) {
+            RecommendationRequest request = new RecommendationRequest("LOGIC_" + r);
+            request.setLimit(10);
+            request.setBaseline(Arrays.asList("item_1", "item_2", "item_3"));
+            for (int f = 0; f < filters; f++) {
+                if (f % 2 == 0) {
+                    request.excludeItemsWhereIn("category", Arrays.asList("Books > \"Sci-fi\"",
+                            "Music & Movies", "Toys"));
+                } else {
+                    request.includeItemsWhereIs("brand", "brand_" + f);
+                }
+            }
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    static Transaction createTransaction(List<CartItem> cart,
+                                         List<RecommendationRequest> requests) {
+        Transaction t = new Transaction();
+        t.cart(cart);
+        t.view("item_0");
+        for (RecommendationRequest next : requests) {
+            t.recommend(next);
+        }
+        return t;
+    }
+
+    private static String join(List<?> l, String delimiter) {
+        String ret = "";
+        for (Object next : l) {
+            ret += next + delimiter;
+        }
+        return ret.isEmpty() ? ret : ret.substring(0, ret.length() - delimiter.length());
+    }
+
+    /**
+     * The serialization of the same transaction before the query writer, as a baseline.
+     */
+    static String serializeLegacy(List<CartItem> cart, List<RecommendationRequest> requests) {
+        HttpUrl.Builder builder = new HttpUrl.Builder()
+                .scheme("https")
+                .host(Session.SERVER)
+                .addPathSegment("merchants")
+                .addPathSegment(Session.getInstance().getMerchantId());
+        builder.addQueryParameter("cv", String.valueOf(1));
+        List<String> l = new ArrayList<String>();
+        for (CartItem next : cart) {
+            String s = "";
+            s += "i:";
+            s += next.getItemId();
+            s += ",p:";
+            s += next.getPrice();
+            s += ",q:";
+            s += next.getQuantity();
+            l.add(s);
+        }
+        builder.addQueryParameter("ca", join(l, "|"));
+        List<String> features = new ArrayList<String>();
+        List<String> baselines = new ArrayList<String>();
+        List<Filter> filters = new ArrayList<Filter>();
+        for (RecommendationRequest req : requests) {
+            String f = "";
+            f += "f:";
+            f += req.getLogic();
+            f += ",l:";
+            f += req.getLimit();
+            f += ",o:";
+            f += 0;
+            features.add(f);
+            baselines.add(req.getLogic() + join(req.getBaseline(), "|"));
+            filters.addAll(req.getFilters());
+        }
+        builder.addQueryParameter("f", join(features, "|"));
+        for (String next : baselines) {
+            builder.addQueryParameter("pi", next);
+        }
+        List<Map<String, String>> ex = new ArrayList<Map<String, String>>();
+        for (Filter next : filters) {
+            Map<String, String> m = new HashMap<String, String>();
+            m.put("f", next.catalogField);
+            m.put("r", next.rule);
+            m.put("v", join(next.values, "|"));
+            m.put("n", (next instanceof ExcludeCommand) ? "false" : "true");
+            ex.add(m);
+        }
+        Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+        builder.addQueryParameter("ex", gson.toJson(ex));
+        builder.addQueryParameter("v", "i:item_0");
+        builder.addQueryParameter("cp", String.valueOf(1));
+        return builder.build().url().toString();
+    }
+
+    private static List<Map<String, String>> parseJson(String json) {
+        return new Gson().fromJson(json, new TypeToken<List<Map<String, String>>>() {
+        }.getType());
+    }
+
+    @Test
+    public void testSameQuery() {
+        List<CartItem> cart = TestHelper.createCart(120);
+        List<RecommendationRequest> requests = createRequests(5, 10);
+        HttpUrl expected = HttpUrl.parse(serializeLegacy(cart, requests));
+        HttpUrl actual = HttpUrl.parse(Session.getInstance().generateGET(
+                createTransaction(cart, requests)));
+        for (String name : new String[]{"cv", "ca", "f", "v", "cp"}) {
+            assertEquals(name, expected.queryParameter(name), actual.queryParameter(name));
+        }
+        assertEquals(expected.queryParameterValues("pi"), actual.queryParameterValues("pi"));
+        assertEquals(parseJson(expected.queryParameter("ex")),
+                parseJson(actual.queryParameter("ex")));
+        assertEquals(expected.encodedPath(), actual.encodedPath());
+    }
+
+    @Test
+    public void testSpecialCharacters() {
+        Transaction t = new Transaction();
+        t.searchTerm("ár & \"idéző\" + 100% = <tag>\n 😀");
+        t.keyword("a=b&c#d");
+        HttpUrl url = HttpUrl.parse(Session.getInstance().generateGET(t));
+        assertEquals("ár & \"idéző\" + 100% = <tag>\n 😀", url.queryParameter("q"));
+        assertEquals("a=b&c#d", url.queryParameter("k"));
+    }
+
+    @Test
+    public void testThreeByteCharacters() {
+        Transaction t = new Transaction();
+        t.searchTerm("100 € 日本語");
+        t.keyword("a\ud800b");
+        HttpUrl url = HttpUrl.parse(Session.getInstance().generateGET(t));
+        assertEquals("100 € 日本語", url.queryParameter("q"));
+        // The unpaired surrogate is replaced
+        assertEquals("a?b", url.queryParameter("k"));
+    }
+
+    @Test
+    public void testErrorJson() {
+        Transaction t = new Transaction();
+        t.tag("sci-fi");
+        t.tag("horror");
+        List<Map<String, String>> errors = parseJson(HttpUrl.parse(
+                Session.getInstance().generateGET(t)).queryParameter("error"));
+        assertEquals(1, errors.size());
+        assertEquals("MULTIPLE_CALL", errors.get(0).get("t"));
+        assertEquals("tag", errors.get(0).get("c"));
+        assertEquals("Multiple calls of tag command", errors.get(0).get("m"));
+    }
+
+    private static long[] measure(List<CartItem> cart, List<RecommendationRequest> requests,
+                                  boolean legacy) {
+        Transaction t = createTransaction(cart, requests);
+        Session session = Session.getInstance();
+        long time = 0;
+        long bytes = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            // Counted one by one, the counter of the platform is an int
+            AllocationCounter.start();
+            long start = System.nanoTime();
+            if (legacy) {
+                serializeLegacy(cart, requests);
+            } else {
+                session.generateGET(t);
+            }
+            time += System.nanoTime() - start;
+            bytes += AllocationCounter.stop();
+        }
+        time /= ITERATIONS;
+        bytes /= ITERATIONS;
+        return new long[]{time, bytes};
+    }
+
+    private static long[][] benchmark(int cartSize, int recommends, int filters) {
+        List<CartItem> cart = TestHelper.createCart(cartSize);
+        List<RecommendationRequest> requests = createRequests(recommends, filters);
+        // Warm up
+        measure(cart, requests, true);
+        measure(cart, requests, false);
+
+        long[] legacy = measure(cart, requests, true);
+        long[] writer = measure(cart, requests, false);
+        Log.i(TAG, cartSize + " cart items, " + recommends + " recommends x " + filters
+                + " filters: legacy " + legacy[0] / 1000 + " us, " + legacy[1]
+                + " bytes allocated; writer " + writer[0] / 1000 + " us, " + writer[1]
+                + " bytes allocated");
+        return new long[][]{legacy, writer};
+    }
+
+    @Test
+    public void testAllocations() {
+        long[][] result = benchmark(150, 5, 20);
+        // Fewer bytes per transaction than the baseline
+        assertTrue(result[1][1] < result[0][1]);
+    }
+
+    @Test
+    public void testBenchmarkLargeCart() {
+        benchmark(500, 1, 0);
+    }
+
+    @Test
+    public void testBenchmarkManyFilters() {
+        benchmark(10, 10, 50);
+    }
+
+}
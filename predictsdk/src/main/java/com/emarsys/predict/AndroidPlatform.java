@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Scarab Research Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.emarsys.predict;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Android adapter of the core, found by Platform at runtime. The handlers are called on the main
+ * thread and the messages go to the logcat.
+ */
+class AndroidPlatform extends Platform {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Executor mainThreadExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    @Override
+    Executor defaultCallbackExecutor() {
+        return mainThreadExecutor;
+    }
+
+    @Override
+    String userAgent() {
+        return "EmarsysPredictSDK|osversion:" + Build.VERSION.RELEASE + "|platform:android";
+    }
+
+    @Override
+    void log(int priority, String tag, String msg) {
+        switch (priority) {
+            case Log.DEBUG:
+                android.util.Log.d(tag, msg);
+                break;
+            case Log.INFO:
+                android.util.Log.i(tag, msg);
+                break;
+            case Log.WARN:
+                android.util.Log.w(tag, msg);
+                break;
+            default:
+                android.util.Log.e(tag, msg);
+                break;
+        }
+    }
+
+}